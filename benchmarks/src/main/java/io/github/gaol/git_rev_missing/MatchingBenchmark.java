@@ -0,0 +1,105 @@
+package io.github.gaol.git_rev_missing;
+
+import org.jboss.set.aphrodite.domain.Commit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of looking up the commits of <code>revA</code> in the history of <code>revB</code>, by SHA1, by the same
+ * message and by a similar message, and of the message functions they use.
+ *
+ * Each lookup benchmark looks up {@link #PROBES} commits, half of them are in the history, except the similar message
+ * one, which looks up {@link #SIMILAR_PROBES} reworded messages since each of them is scored against many messages.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatchingBenchmark {
+
+    static final int PROBES = 64;
+    static final int SIMILAR_PROBES = 8;
+
+    @Param({"1000", "10000", "100000"})
+    int commits;
+
+    private List<Commit> history;
+    private RevisionIndex index;
+    private final String[] shas = new String[PROBES];
+    private final String[] messages = new String[PROBES];
+    private final String[] rewordedMessages = new String[PROBES];
+
+    @Setup
+    public void setup() {
+        history = Synthetic.history(commits, 42);
+        index = new RevisionIndex(history);
+        Random random = new Random(7);
+        for (int i = 0; i < PROBES; i++) {
+            Commit commit = i % 2 == 0 ? history.get(random.nextInt(history.size())) : new Commit(Synthetic.sha(random), Synthetic.message(random));
+            shas[i] = commit.getSha();
+            messages[i] = commit.getMessage();
+            rewordedMessages[i] = Synthetic.reword(commit.getMessage(), random);
+        }
+        // the similar message index is built on the first lookup
+        index.similarMessage(messages[0], 0.7d);
+    }
+
+    @Benchmark
+    public RevisionIndex buildIndex() {
+        return new RevisionIndex(history);
+    }
+
+    @Benchmark
+    public void commitInList(Blackhole blackhole) {
+        for (String sha : shas) {
+            blackhole.consume(index.containsSha(sha));
+        }
+    }
+
+    @Benchmark
+    public void sameMessageInList(Blackhole blackhole) {
+        for (String message : messages) {
+            blackhole.consume(index.sameMessage(message));
+        }
+    }
+
+    @Benchmark
+    public void similarMessageInList(Blackhole blackhole) {
+        for (int i = 0; i < SIMILAR_PROBES; i++) {
+            blackhole.consume(index.similarMessage(rewordedMessages[i], 0.7d));
+        }
+    }
+
+    @Benchmark
+    public void commitMessageTrim(Blackhole blackhole) {
+        for (String message : messages) {
+            blackhole.consume(RepoService.commitMessageTrim(message));
+        }
+    }
+
+    @Benchmark
+    public void similarness(Blackhole blackhole) {
+        for (int i = 0; i < PROBES; i++) {
+            blackhole.consume(RepoService.similarness(messages[i], rewordedMessages[i]));
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+package io.github.gaol.git_rev_missing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of comparing the patches of 2 commits, from small patches to very large ones.
+ *
+ * The commits have 4 files each, 3 of them are the same, the other one has 5% of its lines changed, or all of them.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PatchBenchmark {
+
+    private static final double RATIO_THRESHOLD = 0.9d;
+
+    // lines of each file patch
+    @Param({"10", "1000", "20000"})
+    int lines;
+
+    private String patch;
+    private String similarPatch;
+    private String differentPatch;
+    private List<FilePatch> files;
+    private List<FilePatch> similarFiles;
+    private List<FilePatch> differentFiles;
+    private RepoService repoService;
+
+    @Setup
+    public void setup() {
+        patch = Synthetic.patch(lines, 1);
+        similarPatch = Synthetic.mutate(patch, 0.05d, 2);
+        differentPatch = Synthetic.patch(lines, 3);
+        String same1 = Synthetic.patch(lines, 4);
+        String same2 = Synthetic.patch(lines, 5);
+        String same3 = Synthetic.patch(lines, 6);
+        files = Arrays.asList(new FilePatch("a.java", same1), new FilePatch("b.java", same2), new FilePatch("c.java", same3), new FilePatch("d.java", patch));
+        similarFiles = Arrays.asList(new FilePatch("d.java", similarPatch), new FilePatch("c.java", same3), new FilePatch("b.java", same2), new FilePatch("a.java", same1));
+        differentFiles = Arrays.asList(new FilePatch("a.java", same1), new FilePatch("b.java", same2), new FilePatch("c.java", same3), new FilePatch("d.java", differentPatch));
+        repoService = new RepoService() {
+            @Override
+            List<FilePatch> fetchCommitFiles(String repoIdOrName, String sha) {
+                throw new UnsupportedOperationException("The patches are passed in");
+            }
+        };
+    }
+
+    @Benchmark
+    public String trimPatchLocation() {
+        return RepoService.trimPatchLocation(patch);
+    }
+
+    @Benchmark
+    public String contentId() {
+        return PatchId.contentId(patch);
+    }
+
+    @Benchmark
+    public double similarPatchRatio() {
+        return PatchSimilarity.ratio(patch, similarPatch, RATIO_THRESHOLD);
+    }
+
+    @Benchmark
+    public double differentPatchRatio() {
+        return PatchSimilarity.ratio(patch, differentPatch, RATIO_THRESHOLD);
+    }
+
+    @Benchmark
+    public CompareResult.Result filePatchSame() {
+        return RepoService.filePatchSame(patch, similarPatch, RATIO_THRESHOLD);
+    }
+
+    // the fingerprints of the commits and the files are computed in the first invocation, like in a check
+    @Benchmark
+    public CompareResult.Result commitSameSimilar() {
+        return repoService.commitSame("repo", "1", files, "2", similarFiles, RATIO_THRESHOLD);
+    }
+
+    @Benchmark
+    public CompareResult.Result commitSameDifferent() {
+        return repoService.commitSame("repo", "1", files, "3", differentFiles, RATIO_THRESHOLD);
+    }
+
+}
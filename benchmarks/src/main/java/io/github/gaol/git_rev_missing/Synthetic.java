@@ -0,0 +1,150 @@
+package io.github.gaol.git_rev_missing;
+
+import org.jboss.set.aphrodite.domain.Commit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates the histories and patches for the benchmarks, the same seed generates the same data.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class Synthetic {
+
+    private static final String[] SYLLABLES = {
+            "con", "fig", "han", "dler", "sub", "sys", "tem", "de", "ploy", "ment", "se", "cu", "ri", "ty", "do", "main",
+            "ser", "ver", "cli", "ent", "time", "out", "pool", "ca", "che", "par", "log", "ging", "test", "doc", "build",
+            "re", "lease", "mem", "leak", "thread", "race", "null", "check", "er", "ror", "mes", "sage", "trans", "ac",
+            "tion", "da", "ta", "sour", "ce", "ad", "ap", "mod", "ule", "ver", "sion", "pen", "den", "cy", "api", "fix"
+    };
+    // like the words of the real messages and code, there are many of them, some are much more used than the others
+    private static final String[] WORDS = words(4000, 1);
+    private static final String[] ISSUE_PROJECTS = {"JBEAP", "WFLY", "WFCORE", "ISSUE"};
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int HUNK_LINES = 20;
+
+    private Synthetic() {
+    }
+
+    private static String[] words(int size, long seed) {
+        Random random = new Random(seed);
+        String[] words = new String[size];
+        for (int i = 0; i < size; i++) {
+            StringBuilder word = new StringBuilder();
+            int syllables = 1 + random.nextInt(3);
+            for (int j = 0; j < syllables; j++) {
+                word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            words[i] = word.toString();
+        }
+        return words;
+    }
+
+    // the smaller indexes are picked more often
+    private static String word(Random random) {
+        return WORDS[(int) (WORDS.length * Math.pow(random.nextDouble(), 3))];
+    }
+
+    /**
+     * A history of commits, a third of the messages start with an issue key like: <code>[JBEAP-1234]</code>.
+     */
+    static List<Commit> history(int size, long seed) {
+        Random random = new Random(seed);
+        List<Commit> commits = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            commits.add(new Commit(sha(random), message(random)));
+        }
+        return commits;
+    }
+
+    static String sha(Random random) {
+        char[] sha = new char[40];
+        for (int i = 0; i < sha.length; i++) {
+            sha[i] = HEX[random.nextInt(HEX.length)];
+        }
+        return new String(sha);
+    }
+
+    static String message(Random random) {
+        StringBuilder message = new StringBuilder();
+        if (random.nextInt(3) == 0) {
+            message.append('[').append(ISSUE_PROJECTS[random.nextInt(ISSUE_PROJECTS.length)]).append('-')
+                    .append(1 + random.nextInt(30000)).append("] ");
+        }
+        int words = 4 + random.nextInt(8);
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                message.append(' ');
+            }
+            message.append(word(random));
+        }
+        return message.toString();
+    }
+
+    /**
+     * The message with one of its words replaced, like an amended commit message.
+     */
+    static String reword(String message, Random random) {
+        String[] words = message.split(" ");
+        words[random.nextInt(words.length)] = word(random);
+        return String.join(" ", words);
+    }
+
+    /**
+     * A patch of the lines, in hunks of 20 lines with the hunk headers.
+     */
+    static String patch(int lines, long seed) {
+        Random random = new Random(seed);
+        StringBuilder patch = new StringBuilder();
+        int location = 1 + random.nextInt(100);
+        for (int i = 0; i < lines; i++) {
+            if (i % HUNK_LINES == 0) {
+                if (i > 0) {
+                    patch.append('\n');
+                }
+                patch.append("@@ -").append(location).append(",").append(HUNK_LINES).append(" +").append(location)
+                        .append(",").append(HUNK_LINES).append(" @@ public class Handler {");
+                location += HUNK_LINES + random.nextInt(200);
+            }
+            patch.append('\n').append(line(random));
+        }
+        return patch.toString();
+    }
+
+    /**
+     * The patch with a ratio of its lines changed, and the hunks moved, like a commit back-ported with conflicts.
+     */
+    static String mutate(String patch, double ratio, long seed) {
+        Random random = new Random(seed);
+        String[] lines = patch.split("\n", -1);
+        StringBuilder mutated = new StringBuilder(patch.length());
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0) {
+                mutated.append('\n');
+            }
+            if (lines[i].startsWith("@@")) {
+                mutated.append(lines[i].replaceFirst("@@ -[0-9]+", "@@ -" + (1 + random.nextInt(1000))));
+            } else if (random.nextDouble() < ratio) {
+                mutated.append(line(random));
+            } else {
+                mutated.append(lines[i]);
+            }
+        }
+        return mutated.toString();
+    }
+
+    private static String line(Random random) {
+        int kind = random.nextInt(4);
+        char prefix = kind == 0 ? '-' : kind == 1 ? '+' : ' ';
+        StringBuilder line = new StringBuilder().append(prefix).append("        ");
+        int words = 2 + random.nextInt(6);
+        for (int i = 0; i < words; i++) {
+            line.append(word(random));
+            line.append(i == words - 1 ? ";" : i % 2 == 0 ? "." : "(");
+        }
+        return line.toString();
+    }
+
+}
@@ -0,0 +1,147 @@
+package io.github.gaol.git_rev_missing;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The manifest and the combined result of a batch run, which checks many repositories in one JVM.
+ *
+ * The manifest is a JSON file like:
+ * <pre>
+ * {
+ *   "repositories": [
+ *     { "repo": "https://github.com/owner/repo", "pairs": ["7.4.0..7.4.1"] },
+ *     { "repo": "https://github.com/owner/another", "chain": ["7.4.0", "7.4.1", "8.0.0"] },
+ *     { "repo": "/path/to/clone", "from": ["fix-branch"], "to": ["7.3.x", "7.4.x"] }
+ *   ]
+ * }
+ * </pre>
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class Batch {
+
+    private Batch() {
+    }
+
+    /**
+     * A repository and the revision pairs to check in it.
+     */
+    static final class Entry {
+        final String repo;
+        final List<RevisionPair> pairs;
+
+        Entry(String repo, List<RevisionPair> pairs) {
+            this.repo = repo;
+            this.pairs = pairs;
+        }
+    }
+
+    /**
+     * The result of a revision pair in a repository, or the error of the repository.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    static final class Result {
+        private final String repo;
+        private final String revA;
+        private final String revB;
+        private final MissingCommit missingCommit;
+        private final String error;
+
+        private Result(String repo, String revA, String revB, MissingCommit missingCommit, String error) {
+            this.repo = repo;
+            this.revA = revA;
+            this.revB = revB;
+            this.missingCommit = missingCommit;
+            this.error = error;
+        }
+
+        static Result of(String repo, RevisionPair pair, MissingCommit missingCommit) {
+            return new Result(repo, pair.getRevA(), pair.getRevB(), missingCommit, null);
+        }
+
+        static Result error(String repo, String error) {
+            return new Result(repo, null, null, null, error);
+        }
+
+        public String getRepo() {
+            return repo;
+        }
+
+        public String getRevA() {
+            return revA;
+        }
+
+        public String getRevB() {
+            return revB;
+        }
+
+        public MissingCommit getMissingCommit() {
+            return missingCommit;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    private static final class Results {
+        private final List<Result> results;
+
+        private Results(List<Result> results) {
+            this.results = results;
+        }
+
+        public List<Result> getResults() {
+            return results;
+        }
+    }
+
+    static List<Entry> readManifest(File manifest) throws IOException {
+        JsonNode repositories = new ObjectMapper().readTree(manifest).get("repositories");
+        if (repositories == null || !repositories.isArray()) {
+            throw new IllegalArgumentException("No repositories found in the manifest: " + manifest);
+        }
+        List<Entry> entries = new ArrayList<>(repositories.size());
+        for (int i = 0; i < repositories.size(); i++) {
+            JsonNode json = repositories.get(i);
+            String repo = json.path("repo").asText(null);
+            if (repo == null) {
+                throw new IllegalArgumentException("No repo of the #" + i + " repository in the manifest: " + manifest);
+            }
+            List<RevisionPair> pairs = new ArrayList<>();
+            for (String pair : strings(json, "pairs")) {
+                pairs.add(RevisionPair.parse(pair));
+            }
+            pairs.addAll(RevisionPair.chain(strings(json, "chain")));
+            pairs.addAll(RevisionPair.matrix(strings(json, "from"), strings(json, "to")));
+            pairs.removeIf(pair -> pair.getRevA().equals(pair.getRevB()));
+            entries.add(new Entry(repo, pairs));
+        }
+        return entries;
+    }
+
+    static void writeResults(List<Result> results, OutputStream output) throws IOException {
+        new ObjectMapper()
+                .disable(SerializationFeature.FAIL_ON_EMPTY_BEANS)
+                .writerWithDefaultPrettyPrinter()
+                .writeValue(output, new Results(results));
+    }
+
+    private static List<String> strings(JsonNode json, String name) {
+        List<String> values = new ArrayList<>();
+        for (JsonNode value : json.path(name)) {
+            values.add(value.asText());
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,99 @@
+package io.github.gaol.git_rev_missing;
+
+/**
+ * A snapshot of the counters of the in-memory cache of the commit patches, it helps to size the cache.
+ *
+ * The weight is the estimated heap size of the patches in bytes.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+public final class CacheStats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long evictionWeight;
+    private final long size;
+    private final long weight;
+    private final long maxWeight;
+
+    CacheStats(long hitCount, long missCount, long evictionCount, long evictionWeight, long size, long weight, long maxWeight) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.evictionWeight = evictionWeight;
+        this.size = size;
+        this.weight = weight;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * @return how many times the patches are found in the cache
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return how many times the patches are fetched because they are not in the cache
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return how many patches are evicted to keep the cache under the max weight
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return the total weight of the evicted patches
+     */
+    public long getEvictionWeight() {
+        return evictionWeight;
+    }
+
+    /**
+     * @return how many commits have the patches in the cache
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the current weight of the cache
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return the max weight of the cache
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @return the ratio of the hits in all requests, <code>1.0</code> if there is no request yet.
+     */
+    public double getHitRate() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 1.0d : (double) hitCount / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", evictionCount=" + evictionCount +
+                ", evictionWeight=" + evictionWeight +
+                ", size=" + size +
+                ", weight=" + weight +
+                ", maxWeight=" + maxWeight +
+                '}';
+    }
+}
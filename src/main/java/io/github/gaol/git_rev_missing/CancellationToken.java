@@ -0,0 +1,146 @@
+package io.github.gaol.git_rev_missing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cancels a check when it is asked to, or when its deadline is over, whichever comes first.
+ * <p>
+ *     A cancelled check does not call the git service anymore, the calls on the way, like the waits for the rate
+ *     limit, are interrupted, and the commits decided so far are returned with the ones not decided yet.
+ * </p>
+ * <p>
+ *     It can be shared by many checks, like all checks of a release pipeline.
+ * </p>
+ *
+ * @see GitRevMissing#missingCommits(String, String, String, long, CancellationToken)
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+public final class CancellationToken {
+
+    private final long deadline;
+    private final List<Runnable> callbacks = new ArrayList<>();
+    private ScheduledFuture<?> timeout;
+    // the thread running the callbacks out of the lock once it is cancelled
+    private Thread cancelling;
+    private volatile boolean cancelled;
+
+    /**
+     * Creates a token without deadline, it is cancelled by {@link #cancel()} only.
+     */
+    public CancellationToken() {
+        this(Long.MAX_VALUE);
+    }
+
+    private CancellationToken(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Creates a token which is cancelled at the deadline.
+     *
+     * @param deadline the time in milliseconds since the epoch
+     * @return a new token
+     */
+    public static CancellationToken deadline(long deadline) {
+        return new CancellationToken(deadline);
+    }
+
+    /**
+     * Creates a token which is cancelled after the timeout from now.
+     *
+     * @param timeoutMillis the timeout in milliseconds
+     * @return a new token
+     */
+    public static CancellationToken timeout(long timeoutMillis) {
+        return new CancellationToken(System.currentTimeMillis() + timeoutMillis);
+    }
+
+    /**
+     * Cancels the checks using this token, it does nothing if they are cancelled already.
+     */
+    public void cancel() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            toRun = new ArrayList<>(callbacks);
+            callbacks.clear();
+            if (timeout != null) {
+                timeout.cancel(false);
+                timeout = null;
+            }
+            cancelling = Thread.currentThread();
+        }
+        // run out of the lock, the callbacks of the checks sharing the token do not wait for each other
+        try {
+            for (Runnable callback : toRun) {
+                callback.run();
+            }
+        } finally {
+            synchronized (this) {
+                cancelling = null;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if it is cancelled, or the deadline is over
+     */
+    public boolean isCancelled() {
+        return cancelled || System.currentTimeMillis() >= deadline;
+    }
+
+    /**
+     * @return the deadline in milliseconds since the epoch, or {@link Long#MAX_VALUE} if there is none
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Runs the callback when it is cancelled, or right now if it is cancelled already. The callback must be quick.
+     */
+    void onCancel(Runnable callback) {
+        synchronized (this) {
+            if (!isCancelled()) {
+                callbacks.add(callback);
+                if (timeout == null && deadline != Long.MAX_VALUE) {
+                    timeout = ExecutorUtils.timer().schedule(this::cancel, deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        cancel();
+        callback.run();
+    }
+
+    /**
+     * The callback is not run after it returns, it waits for the callbacks being run if it is cancelled now.
+     */
+    synchronized void removeOnCancel(Runnable callback) {
+        callbacks.remove(callback);
+        if (callbacks.isEmpty() && timeout != null) {
+            timeout.cancel(false);
+            timeout = null;
+        }
+        boolean interrupted = false;
+        while (cancelling != null && cancelling != Thread.currentThread()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // like by the callback of this check
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
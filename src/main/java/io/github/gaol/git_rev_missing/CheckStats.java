@@ -0,0 +1,47 @@
+package io.github.gaol.git_rev_missing;
+
+import java.util.Map;
+
+/**
+ * The stats of a check, see {@link GitRevMissing#setStatsEnabled(boolean)}.
+ *
+ * The timers and the cache lookups are counted for the check only, even when other checks run at the same time on the
+ * same connection, like the pairs of revisions. A patch loaded by another check is counted as a hit.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+public final class CheckStats {
+
+    private final long totalMillis;
+    private final Map<String, TimerStats> timers;
+    private final Map<String, CacheStats> caches;
+
+    CheckStats(long totalMillis, Map<String, TimerStats> timers, Map<String, CacheStats> caches) {
+        this.totalMillis = totalMillis;
+        this.timers = timers;
+        this.caches = caches;
+    }
+
+    /**
+     * @return the wall time of the check in milliseconds
+     */
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    /**
+     * @return the API calls, the rate limit waits, the comparisons and the phases, by the timer names like
+     * <code>api.commit</code>, <code>wait.rate-limit</code>, <code>compare.patches</code> and <code>phase.histories</code>
+     */
+    public Map<String, TimerStats> getTimers() {
+        return timers;
+    }
+
+    /**
+     * @return the counters of the in-memory caches: <code>patches</code>, <code>patchIds</code> and <code>histories</code>
+     */
+    public Map<String, CacheStats> getCaches() {
+        return caches;
+    }
+
+}
@@ -0,0 +1,372 @@
+package io.github.gaol.git_rev_missing;
+
+import org.jboss.set.aphrodite.domain.Commit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * The commits of a revision in a compact form for the long histories, newest first.
+ *
+ * The SHA1s are packed in a byte array, 20 bytes each, and looked up in an open addressing table. The messages are
+ * kept once in a {@link MessagePool} shared by the histories of a check, like the ones cherry-picked to both revisions,
+ * with their trimmed form. The commit objects are only created when they are asked for, like for the reported commits.
+ *
+ * It is built by one thread, and read by many once it is built.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class CompactHistory {
+
+    private static final int SHA_BYTES = 20;
+    private static final int SHA_LENGTH = SHA_BYTES * 2;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final MessagePool pool;
+    private byte[] shas = new byte[16 * SHA_BYTES];
+    private int[] messageIds = new int[16];
+    // position + 1 of the packed SHA1s, 0 for the empty slots
+    private int[] table = new int[32];
+    private int packed;
+    // the SHA1s which cannot be packed, like the abbreviated ones, by position and the other way
+    private Map<Integer, String> otherShas;
+    private Map<String, Integer> otherPositions;
+    private int size;
+
+    CompactHistory(MessagePool pool) {
+        this.pool = pool;
+    }
+
+    static CompactHistory of(List<Commit> commits) {
+        return of(commits, new MessagePool());
+    }
+
+    static CompactHistory of(List<Commit> commits, MessagePool pool) {
+        return new CompactHistory(pool).addAll(commits);
+    }
+
+    CompactHistory addAll(List<Commit> commits) {
+        for (Commit commit : commits) {
+            add(commit.getSha(), commit.getMessage());
+        }
+        return this;
+    }
+
+    CompactHistory addAll(CompactHistory commits) {
+        for (int i = 0; i < commits.size(); i++) {
+            add(commits.sha(i), commits.message(i));
+        }
+        return this;
+    }
+
+    CompactHistory add(String sha, String message) {
+        if (size == messageIds.length) {
+            messageIds = Arrays.copyOf(messageIds, size * 2);
+            shas = Arrays.copyOf(shas, size * 2 * SHA_BYTES);
+        }
+        messageIds[size] = pool.id(message);
+        if (pack(sha, size * SHA_BYTES)) {
+            if (++packed * 2 > table.length) {
+                rehash(table.length * 2);
+            } else {
+                insert(size);
+            }
+        } else {
+            if (otherShas == null) {
+                otherShas = new HashMap<>();
+                otherPositions = new HashMap<>();
+            }
+            otherShas.put(size, sha);
+            otherPositions.putIfAbsent(sha, size);
+        }
+        size++;
+        return this;
+    }
+
+    /**
+     * @return a new history of the commits at the positions accepted by the filter, in the same pool
+     */
+    CompactHistory filter(IntPredicate filter) {
+        CompactHistory filtered = new CompactHistory(pool);
+        for (int i = 0; i < size; i++) {
+            if (filter.test(i)) {
+                filtered.add(sha(i), message(i));
+            }
+        }
+        return filtered;
+    }
+
+    int size() {
+        return size;
+    }
+
+    MessagePool messages() {
+        return pool;
+    }
+
+    String sha(int position) {
+        if (otherShas != null) {
+            String sha = otherShas.get(position);
+            if (sha != null) {
+                return sha;
+            }
+        }
+        char[] chars = new char[SHA_LENGTH];
+        for (int i = 0, offset = position * SHA_BYTES; i < SHA_BYTES; i++) {
+            int b = shas[offset + i] & 0xff;
+            chars[2 * i] = HEX[b >>> 4];
+            chars[2 * i + 1] = HEX[b & 0xf];
+        }
+        return new String(chars);
+    }
+
+    int messageId(int position) {
+        return messageIds[position];
+    }
+
+    String message(int position) {
+        return pool.message(messageIds[position]);
+    }
+
+    Commit commit(int position) {
+        return new Commit(sha(position), message(position));
+    }
+
+    /**
+     * @return the commit objects of the history, created now, like for the callers which page the commits
+     */
+    List<Commit> commits() {
+        List<Commit> commits = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            commits.add(commit(i));
+        }
+        return commits;
+    }
+
+    /**
+     * @return the estimated size in bytes of the history with its messages, for the histories which have their own pool
+     */
+    long weight() {
+        long weight = 64 + shas.length + 4L * (messageIds.length + table.length);
+        if (otherShas != null) {
+            weight += 120L * otherShas.size();
+        }
+        return weight + pool.weight();
+    }
+
+    boolean containsSha(String sha) {
+        return indexOf(sha) >= 0;
+    }
+
+    /**
+     * @return the first position of the commit, or <code>-1</code> if it is not in the history
+     */
+    int indexOf(String sha) {
+        byte[] bytes = new byte[SHA_BYTES];
+        if (!pack(sha, bytes, 0)) {
+            Integer position = otherPositions == null ? null : otherPositions.get(sha);
+            return position == null ? -1 : position;
+        }
+        int mask = table.length - 1;
+        for (int slot = hash(bytes, 0) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int position = table[slot] - 1;
+            if (equals(bytes, position)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equals(byte[] bytes, int position) {
+        for (int i = 0, offset = position * SHA_BYTES; i < SHA_BYTES; i++) {
+            if (shas[offset + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        for (int i = 0; i <= size; i++) {
+            if (otherShas == null || !otherShas.containsKey(i)) {
+                insert(i);
+            }
+        }
+    }
+
+    private void insert(int position) {
+        int mask = table.length - 1;
+        int slot = hash(shas, position * SHA_BYTES) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = position + 1;
+    }
+
+    // the SHA1s are uniformly distributed already
+    private static int hash(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    private boolean pack(String sha, int offset) {
+        return pack(sha, shas, offset);
+    }
+
+    // only the full SHA1s in lower case are packed, so that they are written back the same
+    private static boolean pack(String sha, byte[] bytes, int offset) {
+        if (sha.length() != SHA_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < SHA_BYTES; i++) {
+            int high = hexDigit(sha.charAt(2 * i));
+            int low = hexDigit(sha.charAt(2 * i + 1));
+            if (high < 0 || low < 0) {
+                return false;
+            }
+            bytes[offset + i] = (byte) (high << 4 | low);
+        }
+        return true;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        return c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+    }
+
+    /**
+     * The messages of the histories compared with each other, each of them is kept once with the id of its trimmed
+     * form, see {@link RepoService#commitMessageTrim(String)}, so the issue keys are trimmed once per message.
+     *
+     * The messages are looked up in an open addressing table of their ids, and the trimmed forms are not kept, each of
+     * them is represented by the first message trimmed to it, so that the pool is smaller than the commit list it is
+     * built from.
+     */
+    static final class MessagePool {
+        private String[] messages = new String[16];
+        // by id, the id of the first message with the same trimmed form, and the hash of the trimmed form
+        private int[] trimmedIds = new int[16];
+        private int[] trimmedHashes = new int[16];
+        // id + 1 of the messages by hash, and of the first messages of the trimmed forms by the hash of the trimmed form
+        private int[] table = new int[32];
+        private int[] trimmedTable = new int[32];
+        private int size;
+
+        synchronized int id(String message) {
+            int id = find(message);
+            if (id >= 0) {
+                return id;
+            }
+            String trimmed = RepoService.commitMessageTrim(message);
+            int trimmedId = findTrimmed(trimmed);
+            return add(message, trimmed.hashCode(), trimmedId);
+        }
+
+        private int add(String message, int trimmedHash, int trimmedId) {
+            int id = size++;
+            if (id == messages.length) {
+                messages = Arrays.copyOf(messages, id * 2);
+                trimmedIds = Arrays.copyOf(trimmedIds, id * 2);
+                trimmedHashes = Arrays.copyOf(trimmedHashes, id * 2);
+            }
+            messages[id] = message;
+            trimmedIds[id] = trimmedId >= 0 ? trimmedId : id;
+            trimmedHashes[id] = trimmedHash;
+            if (size * 2 > table.length) {
+                table = new int[table.length * 2];
+                trimmedTable = new int[trimmedTable.length * 2];
+                for (int i = 0; i < size; i++) {
+                    insert(i);
+                }
+            } else {
+                insert(id);
+            }
+            return id;
+        }
+
+        private void insert(int id) {
+            insert(table, spread(messages[id].hashCode()), id);
+            if (trimmedIds[id] == id) {
+                insert(trimmedTable, spread(trimmedHashes[id]), id);
+            }
+        }
+
+        private static void insert(int[] table, int hash, int id) {
+            int mask = table.length - 1;
+            int slot = hash & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+
+        private int find(String message) {
+            int mask = table.length - 1;
+            for (int slot = spread(message.hashCode()) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                int id = table[slot] - 1;
+                if (messages[id].equals(message)) {
+                    return id;
+                }
+            }
+            return -1;
+        }
+
+        // the message is trimmed again only when the hash of its trimmed form is the same
+        private int findTrimmed(String trimmed) {
+            int hash = trimmed.hashCode();
+            int mask = trimmedTable.length - 1;
+            for (int slot = spread(hash) & mask; trimmedTable[slot] != 0; slot = (slot + 1) & mask) {
+                int id = trimmedTable[slot] - 1;
+                if (trimmedHashes[id] == hash && RepoService.commitMessageTrim(messages[id]).equals(trimmed)) {
+                    return id;
+                }
+            }
+            return -1;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        /**
+         * @return the id of the message, or <code>-1</code> if it is not in the pool
+         */
+        synchronized int idIfPresent(String message) {
+            return find(message);
+        }
+
+        /**
+         * @return the trimmed id of the messages trimmed to it, or <code>-1</code> if no message in the pool is trimmed to it
+         */
+        synchronized int trimmedIdIfPresent(String trimmed) {
+            return findTrimmed(trimmed);
+        }
+
+        synchronized String message(int id) {
+            return messages[id];
+        }
+
+        synchronized int trimmedId(int id) {
+            return trimmedIds[id];
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized long weight() {
+            long weight = 64 + 4L * (messages.length + trimmedIds.length + trimmedHashes.length + table.length + trimmedTable.length);
+            for (int i = 0; i < size; i++) {
+                weight += 40 + 2L * messages[i].length();
+            }
+            return weight;
+        }
+    }
+
+}
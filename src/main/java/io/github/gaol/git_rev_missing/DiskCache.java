@@ -0,0 +1,517 @@
+package io.github.gaol.git_rev_missing;
+
+import org.jboss.set.aphrodite.domain.Commit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A persistent cache of the commit patches and the commit lists, so that they are not fetched again in the next run.
+ *
+ * The entries are appended to one data file, and the index of the entries is rebuilt from the record headers when
+ * the cache is opened. When the data file grows over the max size, it is compacted in place keeping the entries used
+ * most recently.
+ *
+ * Several processes can share one directory: the records are appended and the file is compacted under an exclusive
+ * lock of the file, and read under a shared one. The entries appended by the other processes are indexed when the
+ * file is seen grown, and the whole index is rebuilt when the generation in the file header is changed by a compaction.
+ *
+ * The patches of a commit never change, so they are kept until they are evicted, the commit lists of a revision
+ * expire after {@link #HISTORY_TTL}.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class DiskCache {
+
+    private static final Logger logger = Logger.getLogger("g_r_m.cache");
+
+    static final long HISTORY_TTL = TimeUnit.HOURS.toMillis(1);
+
+    private static final String FILES_PREFIX = "files:";
+    private static final String HISTORY_PREFIX = "history:";
+    private static final String DATA_FILE = "cache.dat";
+    private static final int MAGIC = 0x47524d31; // GRM1
+    private static final int FILE_MAGIC = 0x47524d32; // GRM2
+    // magic, generation, it is increased by each compaction
+    private static final int FILE_HEADER_SIZE = 4 + 8;
+    // magic, timestamp, key length, value length, value crc
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4 + 4;
+    // compacts to this ratio of the max size, so that it does not compact on each write
+    private static final double COMPACT_RATIO = 0.75d;
+
+    private static final Map<Path, DiskCache> caches = new HashMap<>();
+
+    private final Path dataFile;
+    private final long maxBytes;
+    private final Map<String, Entry> index = new HashMap<>();
+    private FileChannel channel;
+    private boolean closed;
+    // the openers which have not closed it, guarded by the caches
+    private int references = 1;
+    private long accessCounter;
+    // the generation of the file the index is of, and the end of the records in the index
+    private long generation = -1;
+    private long indexedSize;
+
+    private static final class Entry {
+        private final long offset;
+        private final long timestamp;
+        private final int keyLength;
+        private final int valueLength;
+        private long lastAccess;
+
+        private Entry(long offset, long timestamp, int keyLength, int valueLength) {
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        private long size() {
+            return HEADER_SIZE + keyLength + valueLength;
+        }
+    }
+
+    /**
+     * Opens the cache in the directory, the same instance is returned for the same directory until it is closed by
+     * each of its openers.
+     *
+     * @throws IllegalStateException if it is open already with a different max size
+     */
+    static DiskCache open(File directory, long maxBytes) {
+        Path dir = directory.toPath().toAbsolutePath().normalize();
+        synchronized (caches) {
+            DiskCache cache = caches.get(dir);
+            if (cache != null) {
+                if (cache.maxBytes != maxBytes) {
+                    throw new IllegalStateException("The cache in: " + dir + " is open with the max size: " + cache.maxBytes
+                            + " bytes, it cannot be opened with: " + maxBytes + " bytes");
+                }
+                cache.references++;
+                return cache;
+            }
+            try {
+                cache = new DiskCache(dir, maxBytes);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open the cache in: " + dir, e);
+            }
+            caches.put(dir, cache);
+            return cache;
+        }
+    }
+
+    // a cache per process, the same directory is only opened more than once by the tests of several processes
+    DiskCache(Path directory, long maxBytes) throws IOException {
+        Files.createDirectories(directory);
+        this.dataFile = directory.resolve(DATA_FILE);
+        this.maxBytes = maxBytes;
+        openDataFile();
+    }
+
+    private void openDataFile() throws IOException {
+        channel = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index.clear();
+        generation = -1;
+        // other processes may be appending to the same file
+        FileLock lock = channel.lock();
+        try {
+            sync(lock);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /*
+     * Brings the index up to date with the file under the lock: it is rebuilt if the file was compacted by another
+     * process, and the records appended since are indexed. A file of an unknown format, or a broken tail, is only
+     * dropped under the exclusive lock.
+     */
+    private void sync(FileLock lock) throws IOException {
+        long size = channel.size();
+        long fileGeneration = -1;
+        if (size >= FILE_HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            readFully(header, 0);
+            header.flip();
+            if (header.getInt() == FILE_MAGIC) {
+                fileGeneration = header.getLong();
+            }
+        }
+        if (fileGeneration < 0) {
+            if (lock.isShared()) {
+                index.clear();
+                return;
+            }
+            if (size > 0) {
+                logger.log(Level.WARNING, "Drop the cache file of an unknown format: " + dataFile);
+            }
+            channel.truncate(0);
+            fileGeneration = System.currentTimeMillis();
+            writeFileHeader(fileGeneration);
+            size = FILE_HEADER_SIZE;
+        }
+        if (fileGeneration != generation) {
+            index.clear();
+            generation = fileGeneration;
+            indexedSize = FILE_HEADER_SIZE;
+        }
+        if (size != indexedSize) {
+            readIndex(size, lock);
+        }
+    }
+
+    private void writeFileHeader(long fileGeneration) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(FILE_MAGIC).putLong(fileGeneration);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    // the channel is closed when a thread using it is interrupted, like by a cancelled check, so it is opened again
+    private void ensureOpen() throws IOException {
+        if (!channel.isOpen() && !closed) {
+            logger.log(Level.FINE, "Open the cache file closed by an interruption again: " + dataFile);
+            openDataFile();
+        }
+    }
+
+    private void readIndex(long size, FileLock lock) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long offset = indexedSize;
+        while (offset + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, offset);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                break;
+            }
+            long timestamp = header.getLong();
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+            if (keyLength < 0 || valueLength < 0 || offset + HEADER_SIZE + keyLength + valueLength > size) {
+                break;
+            }
+            ByteBuffer key = ByteBuffer.allocate(keyLength);
+            readFully(key, offset + HEADER_SIZE);
+            Entry entry = new Entry(offset, timestamp, keyLength, valueLength);
+            entry.lastAccess = ++accessCounter;
+            // the later one wins
+            index.put(new String(key.array(), StandardCharsets.UTF_8), entry);
+            offset += entry.size();
+        }
+        indexedSize = offset;
+        if (offset < size && !lock.isShared()) {
+            // a partial record from an interrupted write
+            logger.log(Level.WARNING, "Drop the broken tail of the cache file: " + dataFile + " from: " + offset);
+            channel.truncate(offset);
+        }
+    }
+
+    static String filesKey(String namespace, String repoIdOrName, String sha) {
+        return FILES_PREFIX + namespace + "/" + repoIdOrName + "/" + sha;
+    }
+
+    // the since time is rounded to days, otherwise it is different in each run
+    static String historyKey(String namespace, String repoURL, String branch, long since) {
+        return HISTORY_PREFIX + namespace + "/" + repoURL + "@" + branch + "@" + TimeUnit.MILLISECONDS.toDays(since);
+    }
+
+    List<FilePatch> getFiles(String key) {
+        byte[] value = get(key, Long.MAX_VALUE);
+        if (value == null) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(value))) {
+            int size = in.readInt();
+            List<FilePatch> files = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                files.add(new FilePatch(readString(in), readString(in)));
+            }
+            return files;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Ignore the broken cache entry: " + key, e);
+            return null;
+        }
+    }
+
+    void putFiles(String key, List<FilePatch> files) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(files.size());
+            for (FilePatch file : files) {
+                writeString(out, file.getPath());
+                writeString(out, file.getPatch());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write the cache entry: " + key, e);
+        }
+        put(key, bytes.toByteArray());
+    }
+
+    List<Commit> getCommits(String key) {
+        byte[] value = get(key, HISTORY_TTL);
+        if (value == null) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(value))) {
+            int size = in.readInt();
+            List<Commit> commits = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                commits.add(new Commit(readString(in), readString(in)));
+            }
+            return commits;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Ignore the broken cache entry: " + key, e);
+            return null;
+        }
+    }
+
+    void putCommits(String key, List<Commit> commits) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(commits.size());
+            for (Commit commit : commits) {
+                writeString(out, commit.getSha());
+                writeString(out, commit.getMessage());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write the cache entry: " + key, e);
+        }
+        put(key, bytes.toByteArray());
+    }
+
+    synchronized byte[] get(String key, long ttl) {
+        FileLock lock;
+        try {
+            ensureOpen();
+            lock = channel.lock(0L, Long.MAX_VALUE, true);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read the cache entry: " + key, e);
+            return null;
+        }
+        try {
+            sync(lock);
+            Entry entry = index.get(key);
+            if (entry == null || System.currentTimeMillis() - entry.timestamp > ttl) {
+                return null;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, entry.offset);
+            header.flip();
+            header.position(HEADER_SIZE - 4);
+            int crc = header.getInt();
+            ByteBuffer value = ByteBuffer.allocate(entry.valueLength);
+            readFully(value, entry.offset + HEADER_SIZE + entry.keyLength);
+            if (crc(value.array()) != crc) {
+                logger.log(Level.WARNING, "Ignore the broken cache entry: " + key);
+                index.remove(key);
+                return null;
+            }
+            entry.lastAccess = ++accessCounter;
+            return inflate(value.array());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read the cache entry: " + key, e);
+            return null;
+        } finally {
+            release(lock);
+        }
+    }
+
+    private void release(FileLock lock) {
+        try {
+            lock.release();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to release the lock of the cache file: " + dataFile, e);
+        }
+    }
+
+    synchronized void put(String key, byte[] value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = deflate(value);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + compressed.length);
+        long timestamp = System.currentTimeMillis();
+        record.putInt(MAGIC).putLong(timestamp).putInt(keyBytes.length).putInt(compressed.length).putInt(crc(compressed));
+        record.put(keyBytes).put(compressed);
+        record.flip();
+        FileLock lock;
+        try {
+            ensureOpen();
+            lock = channel.lock();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write the cache entry: " + key, e);
+            return;
+        }
+        try {
+            // other processes may have appended to the same file, or compacted it
+            sync(lock);
+            long offset = indexedSize;
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+            Entry entry = new Entry(offset, timestamp, keyBytes.length, compressed.length);
+            entry.lastAccess = ++accessCounter;
+            index.put(key, entry);
+            indexedSize = offset + entry.size();
+            if (indexedSize > maxBytes) {
+                // still under the lock, so that no record is appended by the other processes meanwhile
+                compact();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write the cache entry: " + key, e);
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Closes the data file once it is closed by each of its openers, the next {@link #open(File, long)} of the same
+     * directory reads it again.
+     */
+    void close() {
+        synchronized (caches) {
+            if (--references > 0) {
+                return;
+            }
+            caches.remove(dataFile.getParent(), this);
+        }
+        closeDataFile();
+    }
+
+    private synchronized void closeDataFile() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Failed to close the cache file: " + dataFile, e);
+        }
+    }
+
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    /*
+     * Rewrites the entries used most recently in place, it is called under the exclusive lock with the index up to
+     * date, so the entries of the other processes are in it as well. The file is not replaced, since the other
+     * processes keep it open, they rebuild their index once they see the new generation.
+     */
+    private void compact() throws IOException {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, Entry>> entries = new ArrayList<>(index.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<String, Entry> e) -> e.getValue().lastAccess).reversed());
+        Path compacted = dataFile.resolveSibling(DATA_FILE + ".compact");
+        Map<String, Entry> kept = new HashMap<>();
+        long size = FILE_HEADER_SIZE;
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Entry> e : entries) {
+                Entry entry = e.getValue();
+                if (entry.timestamp + HISTORY_TTL < now && e.getKey().startsWith(HISTORY_PREFIX)) {
+                    continue;
+                }
+                // the smaller ones used less recently may still fit
+                if (size + entry.size() > maxBytes * COMPACT_RATIO) {
+                    continue;
+                }
+                ByteBuffer record = ByteBuffer.allocate((int) entry.size());
+                readFully(record, entry.offset);
+                record.flip();
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+                Entry moved = new Entry(size, entry.timestamp, entry.keyLength, entry.valueLength);
+                moved.lastAccess = entry.lastAccess;
+                kept.put(e.getKey(), moved);
+                size += entry.size();
+            }
+            // the kept records are copied back over the data file, the same file the other processes have open
+            long copied = 0;
+            while (copied < size - FILE_HEADER_SIZE) {
+                copied += out.transferTo(copied, size - FILE_HEADER_SIZE - copied, channel.position(FILE_HEADER_SIZE + copied));
+            }
+        } finally {
+            Files.deleteIfExists(compacted);
+        }
+        channel.truncate(size);
+        writeFileHeader(generation + 1);
+        channel.force(false);
+        generation++;
+        indexedSize = size;
+        index.clear();
+        index.putAll(kept);
+        logger.log(Level.FINE, "Compacted the cache file: " + dataFile + ", " + kept.size() + " of " + entries.size() + " entries are kept");
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the cache file: " + dataFile);
+            }
+        }
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length);
+        return (int) crc32.getValue();
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 16);
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+            deflater.write(bytes);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compress the cache entry", e);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 3);
+        try (InflaterInputStream inflater = new InflaterInputStream(new ByteArrayInputStream(bytes))) {
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = inflater.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
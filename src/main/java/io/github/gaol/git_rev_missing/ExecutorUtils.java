@@ -0,0 +1,246 @@
+package io.github.gaol.git_rev_missing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Utilities to run the checks concurrently. The tasks work for the same check as the thread submitting them, see
+ * {@link Metrics#inCheck(java.util.concurrent.Callable)}.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class ExecutorUtils {
+
+    private static final Logger logger = Logger.getLogger("g_r_m.executor");
+
+    private static volatile ExecutorService defaultExecutor;
+    // the executor the current thread runs a task of
+    private static final ThreadLocal<Executor> WORKER = new ThreadLocal<>();
+    private static volatile ScheduledExecutorService timer;
+
+    /**
+     * The default executor, which uses a virtual thread per task when it is available, or a cached pool of daemon threads.
+     * It is shared and never shut down.
+     */
+    static Executor defaultExecutor() {
+        if (defaultExecutor == null) {
+            synchronized (ExecutorUtils.class) {
+                if (defaultExecutor == null) {
+                    defaultExecutor = createDefaultExecutor();
+                }
+            }
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * The timer to run the tasks at a given time, like the deadlines of the checks, it is a single daemon thread,
+     * so the tasks must be quick. It is shared and never shut down.
+     */
+    static ScheduledExecutorService timer() {
+        if (timer == null) {
+            synchronized (ExecutorUtils.class) {
+                if (timer == null) {
+                    timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "g_r_m-timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return timer;
+    }
+
+    private static ExecutorService createDefaultExecutor() {
+        try {
+            // Java 21+
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.log(Level.FINE, "Virtual threads are not available, use platform threads instead");
+        }
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "g_r_m-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Applies the function to each of the inputs on the executor, with at most <code>concurrency</code> of them running
+     * at the same time. If any of them fails, no more of them are started, the running ones are cancelled and the
+     * failure is thrown.
+     * <p>
+     *     When it is called by a task running on the same executor, like the fetches of a pair of revisions checked
+     *     with the other pairs, the inputs are applied on the current thread instead, so a bounded executor cannot be
+     *     used up by the tasks waiting for their inner tasks. The default executor is not bounded.
+     * </p>
+     *
+     * @return the results in the same order as the inputs
+     */
+    static <T, R> List<R> mapConcurrently(List<T> inputs, Function<T, R> function, Executor executor, int concurrency) {
+        List<R> results = new ArrayList<>(inputs.size());
+        if (concurrency <= 1 || inputs.size() <= 1 || isNested(executor)) {
+            for (T input : inputs) {
+                results.add(function.apply(input));
+            }
+            return results;
+        }
+        final Semaphore inFlight = new Semaphore(concurrency);
+        // the tasks in the order they are done, so a failure is seen whichever task it is
+        final BlockingQueue<Future<R>> finished = new LinkedBlockingQueue<>();
+        List<FutureTask<R>> tasks = new ArrayList<>(inputs.size());
+        try {
+            int completed = 0;
+            for (T input : inputs) {
+                inFlight.acquire();
+                for (Future<R> future = finished.poll(); future != null; future = finished.poll()) {
+                    future.get();
+                    completed++;
+                }
+                FutureTask<R> task = new FutureTask<R>(task(() -> function.apply(input), executor)) {
+                    @Override
+                    protected void done() {
+                        finished.add(this);
+                        inFlight.release();
+                    }
+                };
+                tasks.add(task);
+                executor.execute(task);
+            }
+            for (; completed < tasks.size(); completed++) {
+                finished.take().get();
+            }
+            for (FutureTask<R> task : tasks) {
+                results.add(task.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted when waiting for the checks to finish");
+        } catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        } finally {
+            for (FutureTask<R> task : tasks) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Runs all the tasks on the executor at the same time, and waits for all of them to finish.
+     * If any of them fails, the others are cancelled and the failure is thrown.
+     * <p>
+     *     They are run one by one on the current thread when it is a task running on the same executor, see
+     *     {@link #mapConcurrently(List, Function, Executor, int)}.
+     * </p>
+     *
+     * @return the results in the same order as the tasks
+     */
+    static <T> List<T> invokeAll(List<Callable<T>> tasks, Executor executor) {
+        if (isNested(executor)) {
+            List<T> results = new ArrayList<>(tasks.size());
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (Exception e) {
+                    throw propagate(e);
+                }
+            }
+            return results;
+        }
+        CompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        try {
+            for (Callable<T> task : tasks) {
+                futures.add(completionService.submit(task(task, executor)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                // fails as soon as any of them fails, no matter which one it is
+                completionService.take().get();
+            }
+            List<T> results = new ArrayList<>(futures.size());
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted when waiting for the tasks to finish");
+        } catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Runs the task on the executor, or on the current thread when it is a task running on the same executor, see
+     * {@link #mapConcurrently(List, Function, Executor, int)}.
+     */
+    static <T> void fork(FutureTask<T> task, Executor executor) {
+        if (isNested(executor)) {
+            task.run();
+        } else {
+            executor.execute(new FutureTask<>(task(() -> {
+                task.run();
+                return null;
+            }, executor)));
+        }
+    }
+
+    // whether the current thread is running a task of the executor, which may be bounded
+    private static boolean isNested(Executor executor) {
+        return executor != defaultExecutor && WORKER.get() == executor;
+    }
+
+    // the task which works for the same check as the current thread, and knows the executor it runs on
+    private static <T> Callable<T> task(Callable<T> task, Executor executor) {
+        Callable<T> inCheck = Metrics.inCheck(task);
+        return () -> {
+            Executor previous = WORKER.get();
+            WORKER.set(executor);
+            try {
+                return inCheck.call();
+            } finally {
+                if (previous == null) {
+                    WORKER.remove();
+                } else {
+                    WORKER.set(previous);
+                }
+            }
+        };
+    }
+
+    static RuntimeException propagate(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new RuntimeException(cause);
+    }
+
+}
@@ -0,0 +1,69 @@
+package io.github.gaol.git_rev_missing;
+
+import java.util.List;
+
+/**
+ * The change of one file in a commit, it is what all git services are compared on.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class FilePatch {
+
+    private final String path;
+    private final String patch;
+    private volatile String contentId;
+
+    FilePatch(String path, String patch) {
+        this.path = path;
+        // no patch for binary files
+        this.patch = patch == null ? "" : patch;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    String getPatch() {
+        return patch;
+    }
+
+    /**
+     * @return <code>false</code> if there is no patch text, like for the binary files, the mode changes, or the patches
+     * omitted by the git service for being too large, which cannot be told apart by the patch then.
+     */
+    boolean hasPatch() {
+        return !patch.isEmpty();
+    }
+
+    /**
+     * @return the hash of the normalized patch, the same for the patches differ only in locations or whitespaces.
+     */
+    String getContentId() {
+        String id = contentId;
+        if (id == null) {
+            id = PatchId.contentId(patch);
+            contentId = id;
+        }
+        return id;
+    }
+
+    /**
+     * @return the estimated heap size of the patches in bytes, it is how the cached patches are weighed.
+     */
+    static long weight(List<FilePatch> files) {
+        long weight = 64;
+        for (FilePatch file : files) {
+            // 2 bytes per char at most, plus the object headers
+            weight += 160 + 2L * (file.path.length() + file.patch.length());
+        }
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return "FilePatch{" +
+                "path=" + path +
+                ", patch.length=" + patch.length() +
+                '}';
+    }
+}
@@ -16,15 +16,22 @@
  */
 package io.github.gaol.git_rev_missing;
 
+import org.jboss.set.aphrodite.domain.Commit;
 import org.jboss.set.aphrodite.spi.RepositoryService;
 import org.kohsuke.github.GHCommit;
+import org.kohsuke.github.GHCompare;
+import org.kohsuke.github.GHRateLimit;
 import org.kohsuke.github.GHRepository;
 import org.kohsuke.github.GitHub;
+import org.kohsuke.github.HttpException;
+import org.kohsuke.github.PagedIterator;
 
 import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
@@ -32,63 +39,111 @@ import java.util.concurrent.ConcurrentHashMap;
 public class GitHubRepoService extends RepoService {
 
     private static final String GITHUB_API_PAMA_NAME = "github";
-    private final Map<String, List<GHCommit.File>> githubCachedFiles = new ConcurrentHashMap<>();
     private final GitHub github;
 
     GitHubRepoService(RepositoryService repoService) {
         super(repoService);
         github = getInstanceField(repoService, GITHUB_API_PAMA_NAME);
+        setScheduler(new RequestScheduler("GitHub", this::retryAfter, this::updateQuota));
     }
 
-    @Override
-    CompareResult.Result commitSame(String repoIdOrName, String sha1, String sha2, double ratioThreshold) {
-        List<GHCommit.File> files1 = githubCachedFiles.computeIfAbsent(repoIdOrName + "/" + sha1, v -> getGitHubCommitFiles(repoIdOrName, sha1));
-        List<GHCommit.File> files2 = githubCachedFiles.computeIfAbsent(repoIdOrName + "/" + sha2, v -> getGitHubCommitFiles(repoIdOrName, sha2));
-        if (files1.size() != files2.size()) {
-            return CompareResult.Result.DIFFERENT;
-        }
-        for (int i = 0; i < files1.size(); i ++) {
-            GHCommit.File f1 = files1.get(i);
-            GHCommit.File f2 = files2.get(i);
-            if (!f1.getPatch().equals(f2.getPatch())) {
-                final String p1 = trimPatchLocation(f1.getPatch());
-                final String p2 = trimPatchLocation(f2.getPatch());
-                if (p1.equals(p2)) {
-                    return CompareResult.Result.SAME;
+    // the primary rate limit waits until it is reset, the secondary one backs off
+    private long retryAfter(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof HttpException) {
+                int code = ((HttpException) t).getResponseCode();
+                if (code == 429 || (code == 403 && String.valueOf(t.getMessage()).toLowerCase().contains("rate limit"))) {
+                    GHRateLimit rateLimit = github.lastRateLimit();
+                    if (rateLimit != null && rateLimit.getRemaining() == 0 && rateLimit.getResetDate() != null) {
+                        return Math.max(0L, rateLimit.getResetDate().getTime() - System.currentTimeMillis()) + 1000L;
+                    }
+                    return 0L;
                 }
-                // check if only small differences, like conflicts resolved, or different locations about the diff
-                double similar = similarness(p1, p2);
-                if (similar > ratioThreshold) {
-                    return CompareResult.Result.SUSPICIOUS;
-                }
-                return CompareResult.Result.DIFFERENT;
+                return -1L;
             }
         }
-        return CompareResult.Result.SAME;
+        return -1L;
     }
 
-    private List<GHCommit.File> getGitHubCommitFiles(String repoId, String sha) {
+    private void updateQuota(RequestScheduler scheduler) {
+        GHRateLimit rateLimit = github.lastRateLimit();
+        if (rateLimit != null && rateLimit.getResetDate() != null) {
+            scheduler.updateQuota(rateLimit.getRemaining(), rateLimit.getLimit(), rateLimit.getResetDate().getTime());
+        }
+    }
+
+    @Override
+    List<FilePatch> fetchCommitFiles(String repoIdOrName, String sha) {
+        List<GHCommit.File> files = getGitHubCommitFiles(repoIdOrName, sha);
+        List<FilePatch> result = new ArrayList<>(files.size());
+        for (GHCommit.File file : files) {
+            result.add(new FilePatch(file.getFileName(), file.getPatch()));
+        }
+        return result;
+    }
+
+    @Override
+    Iterator<List<Commit>> fetchPagesSince(URL repoURL, String branch, long since) {
+        String repoId = RepoUtils.projectId(repoURL);
+        AtomicReference<PagedIterator<GHCommit>> commits = new AtomicReference<>();
+        return pages("listing commits of " + branch + " in " + repoURL, () -> {
+            if (commits.get() == null) {
+                commits.set(getGitHubRepository(repoId).queryCommits().from(branch).since(since).pageSize(COMMITS_PAGE_SIZE).list().iterator());
+            }
+            // no more requests after the last page, which has no link to the next one
+            if (!commits.get().hasNext()) {
+                return null;
+            }
+            List<Commit> page = new ArrayList<>(COMMITS_PAGE_SIZE);
+            for (GHCommit commit : commits.get().nextPage()) {
+                page.add(new Commit(commit.getSHA1(), commit.getCommitShortInfo().getMessage()));
+            }
+            return page;
+        });
+    }
+
+    @Override
+    List<Commit> getCommitsBetween(String repoIdOrName, String base, String head) {
         try {
-            GHRepository repository = github.getRepository(repoId);
-            if (repository == null) {
-                throw new RuntimeException("No repository: " + repoId + " was found");
+            GHCompare compare = scheduler().execute("compare", "comparing " + base + "..." + head + " in " + repoIdOrName,
+                    () -> getGitHubRepository(repoIdOrName).getCompare(base, head));
+            GHCompare.Commit[] commits = compare.getCommits();
+            if (commits.length < compare.getTotalCommits()) {
+                // the compare API returns at most 250 commits
+                return null;
             }
-            GHCommit commit = repository.getCommit(sha);
-            if (commit == null) {
-                throw new RuntimeException("No commit: " + sha + " was found in " + repoId);
+            List<Commit> result = new ArrayList<>(commits.length);
+            // oldest first in the compare result
+            for (int i = commits.length - 1; i >= 0; i--) {
+                result.add(new Commit(commits[i].getSHA1(), commits[i].getCommitShortInfo().getMessage()));
             }
-            return commit.getFiles();
+            return result;
         } catch (IOException e) {
-            throw new RuntimeException("Failed to compare 2 commits", e);
+            throw new RuntimeException("Failed to compare " + base + "..." + head + " in " + repoIdOrName, e);
         }
     }
 
-    @Override
-    void destroy() {
+    private GHRepository getGitHubRepository(String repoId) throws IOException {
+        GHRepository repository = github.getRepository(repoId);
+        if (repository == null) {
+            throw new RuntimeException("No repository: " + repoId + " was found");
+        }
+        return repository;
+    }
+
+    private List<GHCommit.File> getGitHubCommitFiles(String repoId, String sha) {
         try {
-            super.destroy();
-        } finally {
-            this.githubCachedFiles.clear();
+            return scheduler().execute("commit", "getting commit: " + sha + " in " + repoId, () -> {
+                GHRepository repository = getGitHubRepository(repoId);
+                GHCommit commit = repository.getCommit(sha);
+                if (commit == null) {
+                    throw new RuntimeException("No commit: " + sha + " was found in " + repoId);
+                }
+                return commit.getFiles();
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compare 2 commits", e);
         }
     }
+
 }
@@ -18,12 +18,19 @@ package io.github.gaol.git_rev_missing;
 
 import org.gitlab4j.api.GitLabApi;
 import org.gitlab4j.api.GitLabApiException;
+import org.gitlab4j.api.Pager;
+import org.gitlab4j.api.models.CompareResults;
 import org.gitlab4j.api.models.Diff;
+import org.jboss.set.aphrodite.domain.Commit;
 import org.jboss.set.aphrodite.spi.RepositoryService;
 
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
@@ -31,59 +38,84 @@ import java.util.concurrent.ConcurrentHashMap;
 public class GitLabRepoService extends RepoService {
 
     private static final String GITLAB_API_PAMA_NAME = "gitLabApi";
-    private final Map<String, List<Diff>> gitlabCachedFiles = new ConcurrentHashMap<>();
+    // the same as the compare API of GitHub, the compare result has the diffs of the whole range as well, so the larger
+    // ranges are listed page by page instead
+    private static final int COMPARE_MAX_COMMITS = 250;
     private final GitLabApi gitLabApi;
 
     GitLabRepoService(RepositoryService repoService) {
         super(repoService);
         gitLabApi = getInstanceField(repoService, GITLAB_API_PAMA_NAME);
+        // the rate limit headers are not exposed by the client, so it only backs off when it is rate limited
+        setScheduler(new RequestScheduler("GitLab", GitLabRepoService::retryAfter, scheduler -> {}));
+    }
+
+    private static long retryAfter(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof GitLabApiException) {
+                return ((GitLabApiException) t).getHttpStatus() == 429 ? 0L : -1L;
+            }
+        }
+        return -1L;
     }
 
     @Override
-    CompareResult.Result commitSame(String repoIdOrName, String sha1, String sha2, double ratioThreshold) {
-        List<Diff> diffs1 = gitlabCachedFiles.computeIfAbsent(repoIdOrName + "/" + sha1, v -> {
-            try {
-                return gitLabApi.getCommitsApi().getDiff(repoIdOrName, sha1);
-            } catch (GitLabApiException e) {
-                throw new RuntimeException("Failed to get difference of commit: " + sha1, e);
+    Iterator<List<Commit>> fetchPagesSince(URL repoURL, String branch, long since) {
+        String projectId = RepoUtils.projectId(repoURL);
+        AtomicReference<Pager<org.gitlab4j.api.models.Commit>> commits = new AtomicReference<>();
+        return pages("listing commits of " + branch + " in " + repoURL, () -> {
+            if (commits.get() == null) {
+                commits.set(gitLabApi.getCommitsApi().getCommits(projectId, branch, new Date(since), null, COMMITS_PAGE_SIZE));
             }
-        });
-        List<Diff> diffs2 = gitlabCachedFiles.computeIfAbsent(repoIdOrName + "/" + sha2, v -> {
-            try {
-                return gitLabApi.getCommitsApi().getDiff(repoIdOrName, sha2);
-            } catch (GitLabApiException e) {
-                throw new RuntimeException("Failed to get difference of commit: " + sha2, e);
+            // the total pages are known from the first one, no more requests after the last page
+            if (!commits.get().hasNext()) {
+                return null;
+            }
+            List<Commit> page = new ArrayList<>(COMMITS_PAGE_SIZE);
+            for (org.gitlab4j.api.models.Commit commit : commits.get().next()) {
+                page.add(new Commit(commit.getId(), commit.getMessage()));
             }
+            return page;
         });
-        if (diffs1.size() != diffs2.size()) {
-            return CompareResult.Result.DIFFERENT;
-        }
-        for (int i = 0; i < diffs1.size(); i ++) {
-            Diff diff1 = diffs1.get(i);
-            Diff diff2 = diffs2.get(i);
-            if (!diff1.getDiff().equals(diff2.getDiff())) {
-                final String p1 = trimPatchLocation(diff1.getDiff());
-                final String p2 = trimPatchLocation(diff2.getDiff());
-                if (p1.equals(p2)) {
-                    return CompareResult.Result.SAME;
-                }
-                // check if only small differences, like conflicts resolved, or different locations about the diff
-                double similar = similarness(p1, p2);
-                if (similar > ratioThreshold) {
-                    return CompareResult.Result.SUSPICIOUS;
-                }
-                return CompareResult.Result.DIFFERENT;
+    }
+
+    @Override
+    List<Commit> getCommitsBetween(String repoIdOrName, String base, String head) {
+        try {
+            CompareResults compare = scheduler().execute("compare", "comparing " + base + "..." + head + " in " + repoIdOrName,
+                    () -> gitLabApi.getRepositoryApi().compare(repoIdOrName, base, head));
+            if (Boolean.TRUE.equals(compare.getCompareTimeout())) {
+                // the commits are not complete when the comparison times out
+                return null;
+            }
+            List<org.gitlab4j.api.models.Commit> commits = compare.getCommits() == null ? Collections.emptyList() : compare.getCommits();
+            if (commits.size() > COMPARE_MAX_COMMITS) {
+                return null;
             }
+            List<Commit> result = new ArrayList<>(commits.size());
+            // oldest first in the compare result
+            for (int i = commits.size() - 1; i >= 0; i--) {
+                result.add(new Commit(commits.get(i).getId(), commits.get(i).getMessage()));
+            }
+            return result;
+        } catch (GitLabApiException e) {
+            throw new RuntimeException("Failed to compare " + base + "..." + head + " in " + repoIdOrName, e);
         }
-        return CompareResult.Result.SAME;
     }
 
     @Override
-    void destroy() {
+    List<FilePatch> fetchCommitFiles(String repoIdOrName, String sha) {
         try {
-            super.destroy();
-        } finally {
-            this.gitlabCachedFiles.clear();
+            List<Diff> diffs = scheduler().execute("commit-diff", "getting commit: " + sha + " in " + repoIdOrName,
+                    () -> gitLabApi.getCommitsApi().getDiff(repoIdOrName, sha));
+            List<FilePatch> result = new ArrayList<>(diffs.size());
+            for (Diff diff : diffs) {
+                result.add(new FilePatch(diff.getNewPath(), diff.getDiff()));
+            }
+            return result;
+        } catch (GitLabApiException e) {
+            throw new RuntimeException("Failed to get difference of commit: " + sha, e);
         }
     }
+
 }
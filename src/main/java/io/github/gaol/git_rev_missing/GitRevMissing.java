@@ -1,6 +1,10 @@
 package io.github.gaol.git_rev_missing;
 
+import java.io.File;
 import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * This provides a simple API to find missing commits when upgrading from one version to another.
@@ -12,7 +16,8 @@ public interface GitRevMissing extends AutoCloseable {
     /**
      * Creates the <code>GitRevMissing</code> instance
      *
-     * @param gitRootURL the git service URL, it must be the root url of the git service.
+     * @param gitRootURL the git service URL, it must be the root url of the git service, or a <code>file:</code> URL
+     *                   of the directory where the local clones are, in which case the projectId is the path of the clone in it.
      * @param user the username to communicate with the git service
      * @param pass the password of the username
      * @return a new <code>GitRevMissing</code> instance
@@ -37,6 +42,134 @@ public interface GitRevMissing extends AutoCloseable {
      */
     GitRevMissing setMessageRatioThreshold(double messageRatioThreshold);
 
+    /**
+     * Sets the executor used to check the commits concurrently, it defaults to a virtual thread per task executor
+     * when it is available, or a shared pool of daemon threads otherwise.
+     * <p>
+     *     The executor is not shut down by this instance. Since it may be bounded, the tasks running on it do not wait
+     *     for the other tasks on it, like the pairs of revisions checked at the same time fetch their patches on their
+     *     own threads.
+     * </p>
+     *
+     * @param executor the executor to run the checks
+     * @return this reference for confluent use
+     */
+    GitRevMissing setExecutor(Executor executor);
+
+    /**
+     * Sets the max number of commits being checked at the same time, default to <code>1</code>, which checks the commits one by one.
+     * <p>
+     *     The order of the commits in the result is the same whatever the concurrency is.
+     * </p>
+     *
+     * @param concurrency the max number of commits being checked at the same time
+     * @return this reference for confluent use
+     */
+    GitRevMissing setConcurrency(int concurrency);
+
+    /**
+     * Sets whether to ask the git service for the commits which are only in one of the revisions, default to <code>false</code>.
+     * <p>
+     *     In compare mode, the shared history of both revisions is not fetched, the commits only in <code>revA</code>
+     *     are checked against the commits only in <code>revB</code> by message and patch, and the <i>since</i> time window
+     *     is not used. If the git service cannot list all of them, like more than 250 commits in GitHub or GitLab, or when
+     *     the comparison times out in GitLab, it falls back to the commits since the time window.
+     * </p>
+     *
+     * @param compareMode true to use the compare mode
+     * @return this reference for confluent use
+     */
+    GitRevMissing setCompareMode(boolean compareMode);
+
+    /**
+     * Sets the directory of the persistent cache, so that the commit patches and the commit lists fetched from the git
+     * service are reused by the next runs. The commit lists expire in 1 hour, the commit patches are kept until the
+     * cache is over the max size, in which case the least recently used ones are evicted.
+     * <p>
+     *     The cache is used by all instances sharing the same connection to the git service, it is not used for local clones.
+     *     The connection is shared by the instances of the same git service and user which are not closed, so it must
+     *     be set the same by all of them, or by none of them. The cache file is closed once all instances using it are closed.
+     * </p>
+     *
+     * @param directory the directory where the cache file is
+     * @param maxBytes the max size of the cache file in bytes
+     * @return this reference for confluent use
+     * @throws IllegalStateException if it is different from the one of the other instances sharing the connection, or if
+     *                               the directory is used by the other instances with a different max size
+     */
+    GitRevMissing setDiskCache(File directory, long maxBytes);
+
+    /**
+     * Sets the state file to check incrementally, default to <code>null</code>, which checks all commits each time.
+     * <p>
+     *     The heads of both revisions, the commits in <code>revB</code> and the commits in <code>revA</code> which are
+     *     missing or suspicious are saved in the state file after each check. The next check of the same revisions lists
+     *     only the commits new since the heads, checks the new commits in <code>revA</code>, and checks the missing or
+     *     suspicious ones again with the new commits in <code>revB</code>. It checks all commits when there is no state,
+     *     when the git service cannot list the new commits, or when a revision is rewritten since its head, like by a
+     *     force push. The <i>since</i> time window is used in the full check, and the commits in <code>revB</code>
+     *     listed before it are dropped from the state.
+     * </p>
+     * <p>
+     *     The file can be shared by the checks of different revisions and repositories.
+     * </p>
+     *
+     * @param stateFile the JSON file where the state is saved
+     * @return this reference for confluent use
+     */
+    GitRevMissing setStateFile(File stateFile);
+
+    /**
+     * Sets the max size in bytes of the commit patches kept in memory, default to 64 MB. The least recently used
+     * patches are evicted when it is over.
+     * <p>
+     *     The patches are kept by the connection to the git service, which is shared by the instances of the same
+     *     git service and user which are not closed, so the size applies to all of them, and it must be set the same
+     *     by all of them.
+     * </p>
+     *
+     * @param maxBytes the max size of the patches in memory in bytes
+     * @return this reference for confluent use
+     * @throws IllegalStateException if it is different from the one of the other instances sharing the connection
+     */
+    GitRevMissing setMemoryCacheSize(long maxBytes);
+
+    /**
+     * Sets whether to add the stats of each check to its result, see {@link MissingCommit#getStats()}, default to <code>false</code>.
+     * <p>
+     *     The stats have the calls to the git service and their time by endpoint, the waits for the rate limit, the
+     *     comparisons of the patches and of the messages and their time, the wall time of the phases of the check,
+     *     and the counters of the in-memory caches. They are also available in JMX all the time, see {@link MetricsMXBean}.
+     * </p>
+     *
+     * @param statsEnabled whether to add the stats of the check
+     * @return this reference for confluent use
+     */
+    GitRevMissing setStatsEnabled(boolean statsEnabled);
+
+    /**
+     * Sets how long the commit lists of the revisions are kept in memory, default to <code>0</code>, which lists the
+     * commits of the revisions for each check.
+     * <p>
+     *     It is for the long-running processes checking the same revisions again and again, the new commits in the
+     *     revisions are not seen until the lists expire. The lists are kept by the connection to the git service
+     *     like the patches, within a quarter of the memory cache size. It does not apply to the compare mode. Like the
+     *     memory cache size, it must be set the same by the instances sharing the connection.
+     * </p>
+     *
+     * @param ttlMillis how long the commit lists are kept in milliseconds
+     * @return this reference for confluent use
+     * @throws IllegalStateException if it is different from the one of the other instances sharing the connection
+     */
+    GitRevMissing setHistoryCacheTtl(long ttlMillis);
+
+    /**
+     * Gets the counters of the in-memory cache of the commit patches, like the hits, misses and evictions.
+     *
+     * @return a snapshot of the counters
+     */
+    CacheStats getCacheStats();
+
     /**
      * Tries to find commits in <code>revA</code>, but missing in <code>revB</code>.
      * <p>
@@ -63,7 +196,75 @@ public interface GitRevMissing extends AutoCloseable {
     MissingCommit missingCommits(String projectId, String revA, String revB, long since);
 
     /**
-     * Release the resources
+     * Tries to find commits in <code>revA</code>, but missing in <code>revB</code>, and reports each of them to the
+     * listener as soon as it is decided, instead of returning all of them at the end.
+     * <p>
+     *     The check stops when the listener returns <code>false</code>, like after the first missing commit when only
+     *     a pass or fail is needed, the commits not decided yet are not reported, and the state file is not updated.
+     *     With a state file, the commits are reported when the incremental check is done, since it checks only the new
+     *     commits.
+     * </p>
+     * @param projectId the projectId
+     * @param revA revision A from which the commits are listed.
+     * @param revB revision B to which the commits may be missing.
+     * @param since time in milliseconds from when to find commits
+     * @param listener the listener of the missing and suspicious commits
+     * @return <code>true</code> if all commits are checked, <code>false</code> if the check is stopped by the listener.
+     */
+    boolean missingCommits(String projectId, String revA, String revB, long since, MissingCommitListener listener);
+
+    /**
+     * Tries to find commits in <code>revA</code>, but missing in <code>revB</code>, until the token is cancelled, like
+     * when its deadline is over.
+     * <p>
+     *     Once the token is cancelled, no more calls are sent to the git service, the calls on the way are interrupted,
+     *     and it returns the commits decided so far, with the commits not decided yet in
+     *     {@link MissingCommit#getUnresolvedCommits()}, see {@link MissingCommit#isCancelled()}. The state file is not
+     *     updated by a cancelled check.
+     * </p>
+     * @param projectId the projectId
+     * @param revA revision A from which the commits are listed.
+     * @param revB revision B to which the commits may be missing.
+     * @param since time in milliseconds from when to find commits
+     * @param token the token to cancel the check
+     * @return a MissingCommit represents the result, which may be partial.
+     */
+    MissingCommit missingCommits(String projectId, String revA, String revB, long since, CancellationToken token);
+
+    /**
+     * Tries to find commits missing in each pair of the revisions, like an upgrade chain or a fix branch against the
+     * maintenance branches, see {@link RevisionPair#chain(List)} and {@link RevisionPair#matrix(List, List)}.
+     * <p>
+     *     It tried to find commits from 12 months ago.
+     * </p>
+     * @param projectId the projectId
+     * @param pairs the pairs of the revisions
+     * @return the MissingCommit of each pair, in the same order as the pairs.
+     * @see #missingCommits(String, List, long)
+     */
+    Map<RevisionPair, MissingCommit> missingCommits(String projectId, List<RevisionPair> pairs);
+
+    /**
+     * Tries to find commits missing in each pair of the revisions, like an upgrade chain or a fix branch against the
+     * maintenance branches, see {@link RevisionPair#chain(List)} and {@link RevisionPair#matrix(List, List)}.
+     * <p>
+     *     The history of each revision is fetched at most once for all pairs, and so is the patch of each commit while it
+     *     is in the cache. The pairs are checked concurrently up to the concurrency set by {@link #setConcurrency(int)},
+     *     each of them checks its commits on the same executor.
+     * </p>
+     * @param projectId the projectId
+     * @param pairs the pairs of the revisions
+     * @param since time in milliseconds from when to find commits
+     * @return the MissingCommit of each pair, in the same order as the pairs.
+     */
+    Map<RevisionPair, MissingCommit> missingCommits(String projectId, List<RevisionPair> pairs, long since);
+
+    /**
+     * Release the resources.
+     * <p>
+     *     The connection to the git service and the caches are shared by the instances of the same user and git
+     *     service, they are released once all of them are closed and no new instance is created for 5 minutes.
+     * </p>
      */
     void close();
 }
@@ -2,6 +2,7 @@ package io.github.gaol.git_rev_missing;
 
 import org.jboss.set.aphrodite.domain.Commit;
 
+import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.time.Instant;
@@ -9,9 +10,32 @@ import java.time.LocalDate;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntFunction;
+import java.util.function.IntToLongFunction;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,17 +51,32 @@ class GitRevMissingImpl implements GitRevMissing {
     private final URL gitRootURL;
     private double ratioThreshold = 0.9d;
     private double messageRatioThreshold = 0.7d;
+    private Executor executor;
+    private int concurrency = 1;
+    private boolean compareMode;
+    private boolean statsEnabled;
+    private File stateFile;
     private final String cacheKey;
+    private final AtomicBoolean closed = new AtomicBoolean();
 
-    private static final ConcurrentHashMap<String, RepoService> repoServices = new ConcurrentHashMap<>();
+    // how long the service of a user and git service is kept once all instances of them are closed
+    static final long IDLE_TIMEOUT_MILLI = TimeUnit.MINUTES.toMillis(5);
+    private static final RepoServicePool repoServices = new RepoServicePool(IDLE_TIMEOUT_MILLI);
+    // the non-streaming checks
+    private static final Progress NO_PROGRESS = new Progress(null, null, null);
 
     GitRevMissingImpl(URL gitRootURL, String user, String pass) {
         super();
         Objects.requireNonNull(gitRootURL, "URL of the git service root must be provided");
         Objects.requireNonNull(gitRootURL.getHost(), "Host of the git service root must be provided");
         this.gitRootURL = gitRootURL;
-        cacheKey = user + "@" + gitRootURL.getHost();
-        repoService = repoServices.computeIfAbsent(cacheKey, k -> RepoService.createRepoService(this.gitRootURL, user, pass));
+        // local clones under different directories need different services
+        cacheKey = user + "@" + (RepoUtils.isLocal(gitRootURL) ? gitRootURL.getPath() : gitRootURL.getHost());
+        repoService = repoServices.acquire(cacheKey, k -> {
+            RepoService service = RepoService.createRepoService(this.gitRootURL, user, pass);
+            service.registerMetrics(k);
+            return service;
+        });
     }
 
     @Override
@@ -52,6 +91,69 @@ class GitRevMissingImpl implements GitRevMissing {
         return this;
     }
 
+    @Override
+    public GitRevMissingImpl setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    @Override
+    public GitRevMissingImpl setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    @Override
+    public GitRevMissingImpl setCompareMode(boolean compareMode) {
+        this.compareMode = compareMode;
+        return this;
+    }
+
+    @Override
+    public GitRevMissingImpl setDiskCache(File directory, long maxBytes) {
+        String cache = directory.toPath().toAbsolutePath().normalize() + ", " + maxBytes + " bytes";
+        configure(RepoService.DISK_CACHE, cache, () -> repoService.setDiskCache(DiskCache.open(directory, maxBytes), cacheKey));
+        return this;
+    }
+
+    @Override
+    public GitRevMissingImpl setStateFile(File stateFile) {
+        this.stateFile = stateFile;
+        return this;
+    }
+
+    @Override
+    public GitRevMissingImpl setMemoryCacheSize(long maxBytes) {
+        configure(RepoService.MEMORY_CACHE_SIZE, maxBytes, () -> repoService.setMemoryCacheSize(maxBytes));
+        return this;
+    }
+
+    @Override
+    public GitRevMissingImpl setStatsEnabled(boolean statsEnabled) {
+        this.statsEnabled = statsEnabled;
+        return this;
+    }
+
+    @Override
+    public GitRevMissingImpl setHistoryCacheTtl(long ttlMillis) {
+        configure(RepoService.HISTORY_CACHE_TTL, ttlMillis, () -> repoService.setHistoryCacheTtl(ttlMillis));
+        return this;
+    }
+
+    // the settings of the service are shared by the other instances of the same git service and user
+    private void configure(String name, Object value, Runnable apply) {
+        repoService.configure(name, value, repoServices.references(cacheKey) > 1, apply);
+    }
+
+    @Override
+    public CacheStats getCacheStats() {
+        return repoService.getCacheStats();
+    }
+
+    private Executor executor() {
+        return executor != null ? executor : ExecutorUtils.defaultExecutor();
+    }
+
     @Override
     public MissingCommit missingCommits(String projectId, String revA, String revB) {
         return missingCommits(projectId, revA, revB, Instant.now().toEpochMilli() - 12 * MONTH_MILLI);
@@ -59,52 +161,444 @@ class GitRevMissingImpl implements GitRevMissing {
 
     @Override
     public MissingCommit missingCommits(String projectId, String revA, String revB, long since) {
+        return missingCommits(projectId, revA, revB, since, null, NO_PROGRESS);
+    }
+
+    @Override
+    public boolean missingCommits(String projectId, String revA, String revB, long since, MissingCommitListener listener) {
+        Objects.requireNonNull(listener, "The listener must be provided");
+        Progress progress = new Progress(repoURL(projectId), listener, null);
+        missingCommits(projectId, revA, revB, since, null, progress);
+        return !progress.isStopped();
+    }
+
+    @Override
+    public MissingCommit missingCommits(String projectId, String revA, String revB, long since, CancellationToken token) {
+        Objects.requireNonNull(token, "The cancellation token must be provided");
+        Progress progress = new Progress(repoURL(projectId), null, token);
+        // the calls on the way, like the waits for the rate limit, are interrupted when it is cancelled
+        Thread caller = Thread.currentThread();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Runnable interrupt = () -> {
+            interrupted.set(true);
+            caller.interrupt();
+        };
+        token.onCancel(interrupt);
+        MissingCommit missingCommit;
         try {
-            URL repoURL = new URL(gitRootURL.toString() + "/" + projectId);
-            logger.info("Checking commits between " + revA + " and " + revB + " in repository: " + repoURL);
-            List<Commit> revAList = repoService.getCommitsSince(repoURL, revA, since);
-            List<Commit> revBList = repoService.getCommitsSince(repoURL, revB, since);
-            String sinceStr = dateString(since);
-            if (revAList.isEmpty()) {
-                logger.log(Level.WARNING, "# no commits found in revision: " + revA + " since: " + sinceStr + ", Please check if the revision: " + revA + " exists in " + projectId);
-            } else {
-                logger.info(revAList.size() + " commits are found in revision: " + revA + " since: " + sinceStr);
+            missingCommit = missingCommits(projectId, revA, revB, since, null, progress);
+        } catch (RuntimeException e) {
+            if (!token.isCancelled()) {
+                throw e;
+            }
+            logger.log(Level.FINE, "The check is interrupted", e);
+            missingCommit = null;
+        } finally {
+            token.removeOnCancel(interrupt);
+            if (interrupted.get()) {
+                // the interruption is for the check only
+                Thread.interrupted();
+            }
+        }
+        if (missingCommit == null) {
+            missingCommit = progress.partial();
+            logger.info("The check is cancelled, " + missingCommit.getUnresolvedCommits().size() + " commits are not decided yet");
+        }
+        return missingCommit;
+    }
+
+    @Override
+    public Map<RevisionPair, MissingCommit> missingCommits(String projectId, List<RevisionPair> pairs) {
+        return missingCommits(projectId, pairs, Instant.now().toEpochMilli() - 12 * MONTH_MILLI);
+    }
+
+    @Override
+    public Map<RevisionPair, MissingCommit> missingCommits(String projectId, List<RevisionPair> pairs, long since) {
+        List<RevisionPair> distinctPairs = new ArrayList<>(new LinkedHashSet<>(pairs));
+        // each history is fetched once for all pairs, the patches are shared by the cache of the repoService
+        WeightedCache<String, CompactHistory> sharedHistories = new WeightedCache<>(commits -> 1L, Long.MAX_VALUE);
+        List<MissingCommit> results = ExecutorUtils.mapConcurrently(distinctPairs,
+                pair -> missingCommits(projectId, pair.getRevA(), pair.getRevB(), since, sharedHistories, NO_PROGRESS), executor(), concurrency);
+        Map<RevisionPair, MissingCommit> missingCommits = new LinkedHashMap<>();
+        for (int i = 0; i < distinctPairs.size(); i++) {
+            missingCommits.put(distinctPairs.get(i), results.get(i));
+        }
+        return missingCommits;
+    }
+
+    private URL repoURL(String projectId) {
+        try {
+            String gitRoot = gitRootURL.toString();
+            return new URL(gitRoot + (gitRoot.endsWith("/") ? "" : "/") + projectId);
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // it returns null if the check is stopped by the listener of the progress, or cancelled
+    private MissingCommit missingCommits(String projectId, String revA, String revB, long since,
+                                         WeightedCache<String, CompactHistory> sharedHistories, Progress progress) {
+        if (!statsEnabled) {
+            return checkRevisions(projectId, revA, revB, since, sharedHistories, progress);
+        }
+        long start = System.currentTimeMillis();
+        // the stats of this check only, the metrics of the connection are shared by the checks running at the same time
+        Metrics stats = new Metrics();
+        MissingCommit missingCommit = stats.bind(() -> checkRevisions(projectId, revA, revB, since, sharedHistories, progress));
+        if (missingCommit != null) {
+            missingCommit.setStats(new CheckStats(System.currentTimeMillis() - start, stats.snapshot(),
+                    stats.cacheStats(repoService.getCachesStats())));
+        }
+        return missingCommit;
+    }
+
+    private MissingCommit checkRevisions(String projectId, String revA, String revB, long since,
+                                         WeightedCache<String, CompactHistory> sharedHistories, Progress progress) {
+        URL repoURL = repoURL(projectId);
+        logger.info("Checking commits between " + revA + " and " + revB + " in repository: " + repoURL);
+        String stateKey = IncrementalState.key(repoURL.toString(), revA, revB);
+        if (stateFile != null) {
+            MissingCommit missingCommit = checkIncrementally(projectId, repoURL, revA, revB, since, stateKey, progress);
+            if (missingCommit != null) {
+                return missingCommit;
+            }
+        }
+        if (progress.isStopped()) {
+            return null;
+        }
+        long historiesStart = System.nanoTime();
+        // the messages of both histories are kept once, except for the histories kept by the caches, which have their own
+        CompactHistory.MessagePool pool = new CompactHistory.MessagePool();
+        List<CompactHistory> histories = null;
+        if (compareMode) {
+            histories = getUniqueCommits(projectId, revA, revB, pool);
+        }
+        if (histories == null && sharedHistories == null && stateFile == null) {
+            histories = pageHistories(projectId, repoURL, revA, revB, since, pool, progress);
+            if (histories == null) {
+                return null;
+            }
+        }
+        if (histories == null) {
+            // the whole histories are needed by the other pairs, or by the next incremental check
+            histories = ExecutorUtils.invokeAll(Arrays.asList(
+                    () -> getCommitsSince(repoURL, revA, since, sharedHistories),
+                    () -> getCommitsSince(repoURL, revB, since, sharedHistories)), executor());
+            logHistory(projectId, revA, histories.get(0).size(), since);
+            logHistory(projectId, revB, histories.get(1).size(), since);
+        }
+        repoService.metrics().record(Metrics.PHASE + "histories", System.nanoTime() - historiesStart);
+        CompactHistory revAHistory = histories.get(0);
+        CompactHistory revBHistory = histories.get(1);
+        CompactHistory commitsToCheck = commitsToCheck(revAHistory);
+        List<CompareResult> results = check(projectId, commitsToCheck, revBHistory, progress);
+        if (progress.isStopped()) {
+            return null;
+        }
+        if (stateFile != null) {
+            long now = System.currentTimeMillis();
+            saveState(stateKey, revAHistory, revBHistory, i -> now, commitsToCheck, results);
+        }
+        return toMissingCommit(repoURL, commitsToCheck, results, progress);
+    }
+
+    private CompactHistory commitsToCheck(CompactHistory revAHistory) {
+        return revAHistory.filter(i -> !shouldOmit(revAHistory.message(i)));
+    }
+
+    // checks the commits against the commits in revB, the results are in the same order as the commits
+    private List<CompareResult> check(String projectId, CompactHistory commitsToCheck, CompactHistory revBHistory, Progress progress) {
+        progress.checking(commitsToCheck);
+        RevisionIndex revBIndex = new RevisionIndex(revBHistory, repoService.metrics());
+        Map<String, String> revAPatchIds = Collections.emptyMap();
+        if (repoService.isPatchIdCheap()) {
+            // fingerprints of the whole history, so that the cherry-picked commits are found without comparing in pairs
+            List<String> shasToCheck = new ArrayList<>();
+            for (int i = 0; i < commitsToCheck.size(); i++) {
+                String sha = commitsToCheck.sha(i);
+                if (!revBIndex.containsSha(sha)) {
+                    shasToCheck.add(sha);
+                }
+            }
+            if (!shasToCheck.isEmpty() && !progress.isStopped()) {
+                List<String> revBShas = new ArrayList<>(revBHistory.size());
+                for (int i = 0; i < revBHistory.size(); i++) {
+                    revBShas.add(revBHistory.sha(i));
+                }
+                long start = System.nanoTime();
+                revAPatchIds = repoService.getPatchIds(projectId, shasToCheck);
+                revBIndex.setPatchIds(repoService.getPatchIds(projectId, revBShas).values());
+                repoService.metrics().record(Metrics.PHASE + "patch-ids", System.nanoTime() - start);
+            }
+        }
+        return checkCommits(projectId, commitsToCheck, revAPatchIds, revBIndex, progress);
+    }
+
+    /*
+     * With a listener, the missing and suspicious commits are reported to it instead, the ones not reported yet are
+     * reported now, and the result is empty, so the memory does not grow with the result.
+     */
+    private MissingCommit toMissingCommit(URL repoURL, CompactHistory commits, List<CompareResult> results, Progress progress) {
+        if (progress.hasListener()) {
+            progress.reportAll(commits, results);
+            return new MissingCommit().setCommits(Collections.emptyList()).setSuspiciousCommits(Collections.emptyList());
+        }
+        List<CommitInfo> missingInB = new ArrayList<>();
+        List<CommitInfo> suspiciousCommits = new ArrayList<>();
+        for (int i = 0; i < commits.size(); i++) {
+            CompareResult result = results.get(i);
+            if (result.getResult() == CompareResult.Result.DIFFERENT) {
+                missingInB.add(commitInfo(repoURL, commits.commit(i), result));
+            } else if (result.getResult() == CompareResult.Result.SUSPICIOUS) {
+                suspiciousCommits.add(commitInfo(repoURL, commits.commit(i), result));
+            }
+        }
+        MissingCommit missingCommit = new MissingCommit();
+        missingCommit.setCommits(missingInB);
+        missingCommit.setSuspiciousCommits(suspiciousCommits);
+        return missingCommit;
+    }
+
+    private static CommitInfo commitInfo(URL repoURL, Commit commitInA, CompareResult result) {
+        CommitInfo commitInfo = new CommitInfo();
+        commitInfo.setCommit(commitInA);
+        commitInfo.setCommitLink(gitCommitLink(repoURL.toString(), commitInA.getSha()));
+        if (result != null && result.getResult() == CompareResult.Result.SUSPICIOUS) {
+            commitInfo.setTargetLink(gitCommitLink(repoURL.toString(), result.getSha2()));
+        }
+        return commitInfo;
+    }
+
+    /*
+     * Only the commits new since the heads seen last time are listed. The new commits in revA are checked against all
+     * commits in revB, and the commits in revA which were missing or suspicious are checked against the new commits
+     * in revB only, since they were checked against the others last time. The commits in revB listed before the time
+     * window are dropped, like the full check does not list them.
+     *
+     * It returns null to run the full check when there is no usable state, the new commits cannot be listed, or the
+     * heads seen last time are not in the revisions any more, like after a force push.
+     */
+    private MissingCommit checkIncrementally(String projectId, URL repoURL, String revA, String revB, long since,
+                                             String stateKey, Progress progress) {
+        IncrementalState.Check state = IncrementalState.read(stateFile, stateKey);
+        if (state == null || state.revAHead == null || state.revBHead == null) {
+            logger.info("No state of the last check is found, check all commits");
+            return null;
+        }
+        // the commits new since the heads, and the commits of the heads which are not in the revisions any more
+        List<List<Commit>> newCommits = ExecutorUtils.invokeAll(Arrays.asList(
+                () -> repoService.getCommitsBetween(projectId, state.revAHead, revA),
+                () -> repoService.getCommitsBetween(projectId, state.revBHead, revB),
+                () -> repoService.getCommitsBetween(projectId, revA, state.revAHead),
+                () -> repoService.getCommitsBetween(projectId, revB, state.revBHead)), executor());
+        if (newCommits.contains(null)) {
+            logger.info("Not able to list the new commits since the last check, check all commits");
+            return null;
+        }
+        if (!newCommits.get(2).isEmpty() || !newCommits.get(3).isEmpty()) {
+            logger.info("The revision: " + (newCommits.get(2).isEmpty() ? revB : revA)
+                    + " is rewritten since the last check, check all commits");
+            return null;
+        }
+        CompactHistory.MessagePool pool = new CompactHistory.MessagePool();
+        CompactHistory newInA = commitsToCheck(CompactHistory.of(newCommits.get(0), pool));
+        CompactHistory newInB = CompactHistory.of(newCommits.get(1), pool);
+        CompactHistory revBHistory = new CompactHistory(pool).addAll(newInB);
+        // when the commits in revB are listed first, by position
+        long[] listed = new long[newInB.size() + state.revBCommits.size()];
+        Arrays.fill(listed, 0, newInB.size(), System.currentTimeMillis());
+        for (IncrementalState.CommitState commitState : state.revBCommits) {
+            // the time they are listed is after the time they are committed, so none in the time window is dropped
+            long listedAt = commitState.listed > 0 ? commitState.listed : state.updated;
+            if (listedAt >= since) {
+                listed[revBHistory.size()] = listedAt;
+                revBHistory.add(commitState.sha, commitState.message);
             }
-            if (revBList.isEmpty()) {
-                logger.log(Level.WARNING, "# no commits found in revision: " + revB + " since: " + sinceStr + ", Please check if the revision: " + revB + " exists in " + projectId);
+        }
+        CompactHistory unresolved = new CompactHistory(pool);
+        for (IncrementalState.CommitState commitState : state.unresolved) {
+            unresolved.add(commitState.sha, commitState.message);
+        }
+        logger.info(newInA.size() + " new commits in revision: " + revA + ", " + newInB.size() + " new commits in revision: "
+                + revB + ", " + unresolved.size() + " commits to check again since the last check");
+
+        CompactHistory commits = new CompactHistory(pool).addAll(newInA);
+        List<CompareResult> results = new ArrayList<>(check(projectId, newInA, revBHistory, NO_PROGRESS));
+        List<CompareResult> rechecked = newInB.size() == 0 ? Collections.emptyList() : check(projectId, unresolved, newInB, NO_PROGRESS);
+        for (int i = 0; i < unresolved.size(); i++) {
+            CompareResult last = state.unresolved.get(i).toCompareResult();
+            CompareResult result = rechecked.isEmpty() ? last : rechecked.get(i);
+            if (result.getResult() == CompareResult.Result.DIFFERENT
+                    || (result.getResult() == CompareResult.Result.SUSPICIOUS && last.getResult() == CompareResult.Result.SUSPICIOUS)) {
+                result = last;
+            }
+            commits.add(unresolved.sha(i), unresolved.message(i));
+            results.add(result);
+        }
+        String revAHead = newCommits.get(0).isEmpty() ? state.revAHead : newCommits.get(0).get(0).getSha();
+        String revBHead = newInB.size() == 0 ? state.revBHead : newInB.sha(0);
+        saveState(stateKey, revAHead, revBHead, revBHistory, i -> listed[i], commits, results);
+        progress.checking(commits);
+        return toMissingCommit(repoURL, commits, results, progress);
+    }
+
+    private void saveState(String stateKey, CompactHistory revAHistory, CompactHistory revBHistory, IntToLongFunction listed,
+                           CompactHistory commits, List<CompareResult> results) {
+        // the heads are not known without commits, the next run checks all commits then
+        String revAHead = revAHistory.size() == 0 ? null : revAHistory.sha(0);
+        String revBHead = revBHistory.size() == 0 ? null : revBHistory.sha(0);
+        saveState(stateKey, revAHead, revBHead, revBHistory, listed, commits, results);
+    }
+
+    private void saveState(String stateKey, String revAHead, String revBHead, CompactHistory revBHistory, IntToLongFunction listed,
+                           CompactHistory commits, List<CompareResult> results) {
+        IncrementalState.Check state = new IncrementalState.Check();
+        state.revAHead = revAHead;
+        state.revBHead = revBHead;
+        for (int i = 0; i < revBHistory.size(); i++) {
+            IncrementalState.CommitState commitState = new IncrementalState.CommitState(revBHistory.commit(i), null);
+            commitState.listed = listed.applyAsLong(i);
+            state.revBCommits.add(commitState);
+        }
+        for (int i = 0; i < commits.size(); i++) {
+            if (results.get(i).getResult() != CompareResult.Result.SAME) {
+                state.unresolved.add(new IncrementalState.CommitState(commits.commit(i), results.get(i)));
+            }
+        }
+        IncrementalState.write(stateFile, stateKey, state);
+    }
+
+    // commits only in revA and commits only in revB, or null if the git service cannot list all of them
+    private List<CompactHistory> getUniqueCommits(String projectId, String revA, String revB, CompactHistory.MessagePool pool) {
+        List<List<Commit>> histories = ExecutorUtils.invokeAll(Arrays.asList(
+                () -> repoService.getCommitsBetween(projectId, revB, revA),
+                () -> repoService.getCommitsBetween(projectId, revA, revB)), executor());
+        if (histories.get(0) == null || histories.get(1) == null) {
+            logger.info("Too many commits to compare between " + revA + " and " + revB + ", list the commits since the time window instead");
+            return null;
+        }
+        logger.info(histories.get(0).size() + " commits are found in revision: " + revA + " but not in: " + revB);
+        logger.info(histories.get(1).size() + " commits are found in revision: " + revB + " but not in: " + revA);
+        return Arrays.asList(CompactHistory.of(histories.get(0), pool), CompactHistory.of(histories.get(1), pool));
+    }
+
+    private CompactHistory getCommitsSince(URL repoURL, String revision, long since, WeightedCache<String, CompactHistory> sharedHistories) {
+        if (sharedHistories != null) {
+            return sharedHistories.get(revision, rev -> getCommitsSince(repoURL, rev, since, null));
+        }
+        try {
+            return repoService.getCommitsSince(repoURL, revision, since);
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Failed to list commits in revision: " + revision + " of repository: " + repoURL, e);
+        }
+    }
+
+    /*
+     * Both histories are listed page by page at the same time. The listing of revB stops once all commits to check in
+     * revA are in it, since all of them are found by sha then, which is the usual case when revB is based on revA.
+     *
+     * It returns null if the check is stopped.
+     */
+    private List<CompactHistory> pageHistories(String projectId, URL repoURL, String revA, String revB, long since,
+                                               CompactHistory.MessagePool pool, Progress progress) {
+        FutureTask<CompactHistory> revAHistory = new FutureTask<>(() -> listCommitsSince(repoURL, revA, since, pool, progress));
+        ExecutorUtils.fork(revAHistory, executor());
+        try {
+            CompactHistory revBHistory = new CompactHistory(pool);
+            boolean allFound;
+            try {
+                allFound = listUntilFound(repoService.pageCommitsSince(repoURL, revB, since), revAHistory,
+                        message -> !shouldOmit(message), progress::isStopped, revBHistory);
+            } catch (RuntimeException e) {
+                throw new RuntimeException("Failed to list commits in revision: " + revB + " of repository: " + repoURL, e);
+            }
+            CompactHistory revAList = revAHistory.get();
+            if (progress.isStopped()) {
+                return null;
+            }
+            logHistory(projectId, revA, revAList.size(), since);
+            if (allFound) {
+                logger.info(revBHistory.size() + " commits are listed in revision: " + revB + ", all commits to check in revision: "
+                        + revA + " are found in them");
             } else {
-                logger.info(revBList.size() + " commits are found in revision: " + revB + " since: " + sinceStr);
+                logHistory(projectId, revB, revBHistory.size(), since);
             }
-            List<CommitInfo> missingInB = new ArrayList<>();
-            List<CommitInfo> suspiciousCommits = new ArrayList<>();
-            for (Commit commitInA: revAList) {
-                if (!shouldOmit(commitInA)) {
-                    CompareResult result = commitInList(projectId, commitInA, revBList);
-                    if (result.getResult() == CompareResult.Result.DIFFERENT) {
-                        CommitInfo commitInfo = new CommitInfo();
-                        commitInfo.setCommit(commitInA);
-                        commitInfo.setCommitLink(gitCommitLink(repoURL.toString(), commitInA.getSha()));
-                        missingInB.add(commitInfo);
-                    } else if (result.getResult() == CompareResult.Result.SUSPICIOUS) {
-                        CommitInfo commitInfo = new CommitInfo();
-                        commitInfo.setCommit(commitInA);
-                        commitInfo.setCommitLink(gitCommitLink(repoURL.toString(), commitInA.getSha()));
-                        commitInfo.setTargetLink(gitCommitLink(repoURL.toString(), result.getSha2()));
-                        suspiciousCommits.add(commitInfo);
+            return Arrays.asList(revAList, revBHistory);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted when listing the commits of revision: " + revA);
+        } catch (ExecutionException e) {
+            throw ExecutorUtils.propagate(e.getCause());
+        } finally {
+            revAHistory.cancel(true);
+        }
+    }
+
+    private CompactHistory listCommitsSince(URL repoURL, String revision, long since, CompactHistory.MessagePool pool, Progress progress) {
+        CompactHistory commits = new CompactHistory(pool);
+        try {
+            Iterator<List<Commit>> pages = repoService.pageCommitsSince(repoURL, revision, since);
+            while (!progress.isStopped() && pages.hasNext()) {
+                commits.addAll(pages.next());
+            }
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Failed to list commits in revision: " + revision + " of repository: " + repoURL, e);
+        }
+        return commits;
+    }
+
+    /**
+     * Lists the pages into <code>listed</code> until the commits to find of the history are all listed, or there are
+     * no more pages. The history is being listed at the same time, its commits are looked for once it is done.
+     *
+     * @param toFind tests the messages of the commits in the history to find
+     * @return <code>true</code> if it stops because all commits to find are listed
+     */
+    static boolean listUntilFound(Iterator<List<Commit>> pages, Future<CompactHistory> history, Predicate<String> toFind,
+                                  BooleanSupplier stopped, CompactHistory listed) throws InterruptedException, ExecutionException {
+        CompactHistory commits = null;
+        // positions in the history of the commits to find which are not listed yet
+        BitSet notFound = null;
+        while (!stopped.getAsBoolean()) {
+            if (notFound == null && history.isDone()) {
+                commits = history.get();
+                notFound = new BitSet(commits.size());
+                for (int i = 0; i < commits.size(); i++) {
+                    if (toFind.test(commits.message(i)) && !listed.containsSha(commits.sha(i))) {
+                        notFound.set(i);
+                    }
+                }
+            }
+            if (notFound != null && notFound.isEmpty()) {
+                return true;
+            }
+            if (!pages.hasNext()) {
+                return false;
+            }
+            List<Commit> page = pages.next();
+            listed.addAll(page);
+            if (notFound != null) {
+                for (Commit commit : page) {
+                    int position = commits.indexOf(commit.getSha());
+                    if (position >= 0) {
+                        notFound.clear(position);
                     }
                 }
             }
-            MissingCommit missingCommit = new MissingCommit();
-            missingCommit.setCommits(missingInB);
-            missingCommit.setSuspiciousCommits(suspiciousCommits);
-            return missingCommit;
-        } catch (MalformedURLException e) {
-            throw new RuntimeException(e);
         }
+        return false;
     }
 
-    private boolean shouldOmit(Commit commit) {
-        String message = commit.getMessage();
+    private static void logHistory(String projectId, String revision, int commits, long since) {
+        String sinceStr = dateString(since);
+        if (commits == 0) {
+            logger.log(Level.WARNING, "# no commits found in revision: " + revision + " since: " + sinceStr + ", Please check if the revision: " + revision + " exists in " + projectId);
+        } else {
+            logger.info(commits + " commits are found in revision: " + revision + " since: " + sinceStr);
+        }
+    }
+
+    private boolean shouldOmit(String message) {
         return message.startsWith("Merge branch ") || message.startsWith("Next is ")
                 || message.startsWith("Prepare ") || message.startsWith("Merge pull request ")
                 || message.equals("Repour");
@@ -117,80 +611,246 @@ class GitRevMissingImpl implements GitRevMissing {
         return date.format(DATE_TIME_FORMATTER);
     }
 
-    private CompareResult commitInList(String repoID, Commit commit, List<Commit> list) {
-        CompareResult cr = new CompareResult().setSha1(commit.getSha());
-        for (Commit commitInList : list) {
-            if (commit.getSha().equals(commitInList.getSha())) {
-                return cr.setResult(CompareResult.Result.SAME);
+    /*
+     * The commits are checked in stages, each stage plans the candidate pairs first, fetches the patches of all of them
+     * with the bounded concurrency, then compares the pairs in memory:
+     *   1. by sha and fingerprint, no patch is needed
+     *   2. with the commits of the same message
+     *   3. with the commits of a similar message, for those not found in stage 2
+     */
+    private List<CompareResult> checkCommits(String projectId, CompactHistory commitsToCheck, Map<String, String> patchIds,
+                                             RevisionIndex revBIndex, Progress progress) {
+        List<CompareResult> results = new ArrayList<>(commitsToCheck.size());
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < commitsToCheck.size(); i++) {
+            String sha = commitsToCheck.sha(i);
+            CompareResult cr = new CompareResult().setSha1(sha);
+            if (revBIndex.containsSha(sha) || revBIndex.containsPatchId(patchIds.get(sha))) {
+                cr.setResult(CompareResult.Result.SAME);
+                progress.decided(commitsToCheck, i, cr);
+            } else {
+                cr.setResult(CompareResult.Result.DIFFERENT);
+                pending.add(i);
             }
+            results.add(cr);
         }
-        List<Commit> sameMessageCommits = sameMessageInList(commit, list);
-        if (!sameMessageCommits.isEmpty()) {
-            boolean suspicious = false;
-            for (Commit c: sameMessageCommits) {
-                CompareResult.Result result = repoService.commitSame(repoID, commit.getSha(), c.getSha(), ratioThreshold);
-                if (CompareResult.Result.SAME == result) {
-                    return cr.setResult(CompareResult.Result.SAME);
-                } else if (result == CompareResult.Result.SUSPICIOUS) {
-                    suspicious = true;
-                    cr.setSha2(c.getSha());
-                }
+        // looked up once, a commit different from all of them is decided in stage 2 already
+        Map<Integer, List<Commit>> similarCandidates = new ConcurrentHashMap<>();
+        IntFunction<List<Commit>> similarMessage = i -> similarCandidates.computeIfAbsent(i,
+                k -> revBIndex.similarMessage(commitsToCheck.message(k), messageRatioThreshold));
+        pending = compareCandidates(projectId, "same message", commitsToCheck, pending, results,
+                i -> revBIndex.sameMessage(commitsToCheck.message(i)), i -> similarMessage.apply(i).isEmpty(), progress);
+        // sometime, the commit message got amended, but the patch content is the same, we consider that as the same commit
+        compareCandidates(projectId, "similar message", commitsToCheck, pending, results, similarMessage, i -> true, progress);
+        return results;
+    }
+
+    /*
+     * Compares the pending commits with their candidates, and returns the ones still different from all candidates.
+     *
+     * The commits are reported to the progress once they are suspicious, or different when no later stage checks them.
+     */
+    private List<Integer> compareCandidates(String projectId, String stage, CompactHistory commitsToCheck, List<Integer> pending,
+                                            List<CompareResult> results, IntFunction<List<Commit>> candidatesOf,
+                                            IntPredicate decidedWhenDifferent, Progress progress) {
+        if (progress.isStopped()) {
+            return pending;
+        }
+        List<Integer> planned = new ArrayList<>();
+        List<List<Commit>> candidates = new ArrayList<>();
+        Set<String> shas = new LinkedHashSet<>();
+        int pairs = 0;
+        for (int i : pending) {
+            if (progress.isStopped()) {
+                // looking up the similar messages takes a while in the long histories
+                return pending;
             }
-            if (suspicious) {
-                return cr.setResult(CompareResult.Result.SUSPICIOUS);
+            List<Commit> commitCandidates = candidatesOf.apply(i);
+            if (commitCandidates.isEmpty()) {
+                if (decidedWhenDifferent.test(i)) {
+                    progress.decided(commitsToCheck, i, results.get(i));
+                }
+            } else {
+                planned.add(i);
+                candidates.add(commitCandidates);
+                shas.add(commitsToCheck.sha(i));
+                for (Commit c : commitCandidates) {
+                    shas.add(c.getSha());
+                }
+                pairs += commitCandidates.size();
             }
         }
-        // sometime, the commit message got amended, but the patch content is the same, we consider that as the same commit
-        List<Commit> similarMessage = similarMessageInList(commit, list, messageRatioThreshold);
-        if (!similarMessage.isEmpty()) {
-            boolean suspicious = false;
-            for (Commit c: similarMessage) {
-                CompareResult.Result result = repoService.commitSame(repoID, commit.getSha(), c.getSha(), ratioThreshold);
-                if (CompareResult.Result.SAME == result) {
-                    return cr.setResult(CompareResult.Result.SAME);
-                } else if (result == CompareResult.Result.SUSPICIOUS) {
-                    suspicious = true;
-                    cr.setSha2(c.getSha());
-                }
+        if (planned.isEmpty()) {
+            return pending;
+        }
+        logger.info("Comparing " + pairs + " pairs of commits with the " + stage + " for " + planned.size()
+                + " commits, patches of " + shas.size() + " commits are needed");
+        String phase = Metrics.PHASE + stage.replace(' ', '-');
+        long start = System.nanoTime();
+        List<String> shaList = new ArrayList<>(shas);
+        List<List<FilePatch>> fetched = ExecutorUtils.mapConcurrently(shaList,
+                sha -> progress.isStopped() ? Collections.<FilePatch>emptyList() : repoService.getCommitFiles(projectId, sha), executor(), concurrency);
+        // held for the stage, so they are not evicted from the cache before being compared
+        Map<String, List<FilePatch>> patches = new HashMap<>();
+        for (int i = 0; i < shaList.size(); i++) {
+            patches.put(shaList.get(i), fetched.get(i));
+        }
+        repoService.metrics().record(phase + ".fetch", System.nanoTime() - start);
+        start = System.nanoTime();
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < planned.size(); i++) {
+            indexes.add(i);
+        }
+        List<CompareResult> compared = ExecutorUtils.mapConcurrently(indexes, i -> {
+            int position = planned.get(i);
+            if (progress.isStopped()) {
+                return results.get(position);
+            }
+            CompareResult cr = compare(projectId, commitsToCheck.sha(position), candidates.get(i), patches);
+            if (cr.getResult() != CompareResult.Result.DIFFERENT || decidedWhenDifferent.test(position)) {
+                progress.decided(commitsToCheck, position, cr);
             }
-            if (suspicious) {
-                return cr.setResult(CompareResult.Result.SUSPICIOUS);
+            return cr;
+        }, executor(), concurrency);
+        repoService.metrics().record(phase + ".compare", System.nanoTime() - start);
+        Set<Integer> resolved = new HashSet<>();
+        for (int i = 0; i < planned.size(); i++) {
+            CompareResult cr = compared.get(i);
+            results.set(planned.get(i), cr);
+            if (cr.getResult() != CompareResult.Result.DIFFERENT) {
+                resolved.add(planned.get(i));
             }
         }
-        return cr.setResult(CompareResult.Result.DIFFERENT);
+        List<Integer> different = new ArrayList<>();
+        for (int i : pending) {
+            if (!resolved.contains(i)) {
+                different.add(i);
+            }
+        }
+        return different;
     }
 
-    private List<Commit> similarMessageInList(Commit commit, List<Commit> list, double messageRatioThreshold) {
-        List<Commit> commits = new ArrayList<>();
-        for (Commit c: list) {
-            if (!c.getMessage().equals(commit.getMessage())) {
-                if (RepoService.commitMessageTrim(c.getMessage()).equals(RepoService.commitMessageTrim(commit.getMessage()))
-                || RepoService.similarness(c.getMessage(), commit.getMessage()) > messageRatioThreshold) {
-                    // after trim the issue key, it is the same
-                    commits.add(c);
-                }
+    private CompareResult compare(String repoID, String sha, List<Commit> candidates, Map<String, List<FilePatch>> patches) {
+        CompareResult cr = new CompareResult().setSha1(sha);
+        boolean suspicious = false;
+        for (Commit c: candidates) {
+            long start = System.nanoTime();
+            CompareResult.Result result = repoService.commitSame(repoID, sha, patches.get(sha),
+                    c.getSha(), patches.get(c.getSha()), ratioThreshold);
+            repoService.metrics().record(Metrics.PATCH_COMPARISONS, System.nanoTime() - start);
+            if (CompareResult.Result.SAME == result) {
+                return cr.setResult(CompareResult.Result.SAME);
+            } else if (result == CompareResult.Result.SUSPICIOUS) {
+                suspicious = true;
+                cr.setSha2(c.getSha());
             }
         }
-        return commits;
+        return cr.setResult(suspicious ? CompareResult.Result.SUSPICIOUS : CompareResult.Result.DIFFERENT);
     }
 
-    private List<Commit> sameMessageInList(Commit commit, List<Commit> list) {
-        List<Commit> commits = new ArrayList<>();
-        for (Commit c: list) {
-            if (c.getMessage().equals(commit.getMessage())) {
-                commits.add(c);
+    /*
+     * Reports the missing and suspicious commits to the listener as soon as they are decided, each of them once.
+     * With a cancellation token, it keeps the result of each decided commit, so that the partial result can be
+     * returned once it is cancelled.
+     */
+    private static final class Progress {
+        private final URL repoURL;
+        private final MissingCommitListener listener;
+        private final CancellationToken token;
+        // by position of the commits to check, guarded by this
+        private BitSet reported;
+        private volatile CompactHistory commits;
+        // by position of the commits to check
+        private volatile AtomicReferenceArray<CompareResult> decided;
+        private volatile boolean stopped;
+
+        private Progress(URL repoURL, MissingCommitListener listener, CancellationToken token) {
+            this.repoURL = repoURL;
+            this.listener = listener;
+            this.token = token;
+        }
+
+        synchronized void checking(CompactHistory commitsToCheck) {
+            // only a check which can be cancelled has a partial result
+            if (token != null) {
+                this.decided = new AtomicReferenceArray<>(commitsToCheck.size());
+                this.commits = commitsToCheck;
+            }
+            if (listener != null) {
+                this.reported = new BitSet(commitsToCheck.size());
             }
         }
-        return commits;
+
+        void decided(CompactHistory commitsToCheck, int position, CompareResult result) {
+            AtomicReferenceArray<CompareResult> decided = this.decided;
+            if (decided != null) {
+                decided.set(position, result);
+            }
+            if (listener != null) {
+                report(commitsToCheck, position, result);
+            }
+        }
+
+        boolean hasListener() {
+            return listener != null;
+        }
+
+        // the commits which are not reported yet, it only makes sure none is left
+        void reportAll(CompactHistory commitsToCheck, List<CompareResult> results) {
+            for (int i = 0; i < commitsToCheck.size(); i++) {
+                report(commitsToCheck, i, results.get(i));
+            }
+        }
+
+        private synchronized void report(CompactHistory commitsToCheck, int position, CompareResult result) {
+            if (stopped || result.getResult() == CompareResult.Result.SAME || reported.get(position)) {
+                return;
+            }
+            reported.set(position);
+            boolean suspicious = result.getResult() == CompareResult.Result.SUSPICIOUS;
+            if (!listener.onCommit(commitInfo(repoURL, commitsToCheck.commit(position), result), suspicious)) {
+                logger.info("The check is stopped by the listener");
+                stopped = true;
+            }
+        }
+
+        boolean isStopped() {
+            return stopped || (token != null && token.isCancelled());
+        }
+
+        // the decided commits, and the ones not decided yet as unresolved
+        MissingCommit partial() {
+            List<CommitInfo> missingInB = new ArrayList<>();
+            List<CommitInfo> suspiciousCommits = new ArrayList<>();
+            List<CommitInfo> unresolved = new ArrayList<>();
+            CompactHistory commitsToCheck = commits;
+            if (commitsToCheck != null) {
+                for (int i = 0; i < commitsToCheck.size(); i++) {
+                    CompareResult result = decided.get(i);
+                    if (result == null) {
+                        unresolved.add(commitInfo(repoURL, commitsToCheck.commit(i), null));
+                    } else if (result.getResult() == CompareResult.Result.DIFFERENT) {
+                        missingInB.add(commitInfo(repoURL, commitsToCheck.commit(i), result));
+                    } else if (result.getResult() == CompareResult.Result.SUSPICIOUS) {
+                        suspiciousCommits.add(commitInfo(repoURL, commitsToCheck.commit(i), result));
+                    }
+                }
+            }
+            return new MissingCommit().setCommits(missingInB).setSuspiciousCommits(suspiciousCommits)
+                    .setUnresolvedCommits(unresolved).setCancelled(true);
+        }
     }
 
     @Override
     public void close() {
-        try {
-            this.repoService.destroy();
-        } finally {
-            repoServices.remove(cacheKey);
+        // the service is shared with the other instances, it is destroyed once none of them uses it for a while
+        if (closed.compareAndSet(false, true)) {
+            repoServices.release(cacheKey);
         }
     }
 
+    static RepoServicePool repoServices() {
+        return repoServices;
+    }
+
 }
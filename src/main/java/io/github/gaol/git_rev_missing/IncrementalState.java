@@ -0,0 +1,128 @@
+package io.github.gaol.git_rev_missing;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.set.aphrodite.domain.Commit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state of the checks saved for the incremental mode, in a JSON file which can hold many checks.
+ *
+ * For each check of <code>revA</code> and <code>revB</code> in a repository, it keeps the heads of both revisions seen
+ * last time, the commits in <code>revB</code> with the time they are listed first, and the commits in <code>revA</code>
+ * which were missing or suspicious. The commits in <code>revA</code> which were found in <code>revB</code> are resolved
+ * and not kept, and the commits in <code>revB</code> listed before the time window of the check are dropped.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class IncrementalState {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**
+     * The state of one check.
+     */
+    static final class Check {
+        public String revAHead;
+        public String revBHead;
+        public List<CommitState> revBCommits = new ArrayList<>();
+        public List<CommitState> unresolved = new ArrayList<>();
+        public long updated;
+    }
+
+    /**
+     * A commit, with the result of the check if it is in <code>revA</code>.
+     */
+    static final class CommitState {
+        public String sha;
+        public String message;
+        public CompareResult.Result result;
+        public String sha2;
+        // when the commit in revB is listed first, 0 if it is not known
+        public long listed;
+
+        CommitState() {
+        }
+
+        CommitState(Commit commit, CompareResult compareResult) {
+            this.sha = commit.getSha();
+            this.message = commit.getMessage();
+            if (compareResult != null) {
+                this.result = compareResult.getResult();
+                this.sha2 = compareResult.getSha2();
+            }
+        }
+
+        Commit toCommit() {
+            return new Commit(sha, message);
+        }
+
+        CompareResult toCompareResult() {
+            return new CompareResult().setSha1(sha).setResult(result).setSha2(sha2);
+        }
+    }
+
+    private static final class Checks {
+        public Map<String, Check> checks = new LinkedHashMap<>();
+    }
+
+    private IncrementalState() {
+    }
+
+    static String key(String repoURL, String revA, String revB) {
+        return repoURL + "#" + revA + ".." + revB;
+    }
+
+    /**
+     * @return the state of the check, or <code>null</code> if it was not saved.
+     */
+    static Check read(File stateFile, String key) {
+        synchronized (IncrementalState.class) {
+            return load(stateFile).checks.get(key);
+        }
+    }
+
+    /**
+     * Saves the state of the check, the states of the other checks in the file are kept.
+     */
+    static void write(File stateFile, String key, Check check) {
+        synchronized (IncrementalState.class) {
+            Checks checks = load(stateFile);
+            check.updated = System.currentTimeMillis();
+            checks.checks.put(key, check);
+            Path path = stateFile.toPath().toAbsolutePath();
+            try {
+                if (path.getParent() != null) {
+                    Files.createDirectories(path.getParent());
+                }
+                Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+                MAPPER.writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), checks);
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to save the state file: " + stateFile, e);
+            }
+        }
+    }
+
+    private static Checks load(File stateFile) {
+        if (!stateFile.exists()) {
+            return new Checks();
+        }
+        try {
+            return MAPPER.readValue(stateFile, Checks.class);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read the state file: " + stateFile, e);
+        }
+    }
+
+}
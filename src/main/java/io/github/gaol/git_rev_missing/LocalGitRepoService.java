@@ -0,0 +1,216 @@
+/*
+ *  Copyright (c) 2024 The original author or authors
+ *
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of Apache License v2.0 which
+ *  accompanies this distribution.
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied.  See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package io.github.gaol.git_rev_missing;
+
+import org.jboss.set.aphrodite.domain.Commit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * RepoService backed by local clones, bare or not, it runs the <code>git</code> command line, so no git service
+ * nor network is needed.
+ *
+ * The repository id is the path of the clone relative to the root directory.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+public class LocalGitRepoService extends RepoService {
+
+    private static final int PATCH_ID_BATCH_SIZE = 200;
+    private final File rootDir;
+
+    LocalGitRepoService(File rootDir) {
+        super();
+        this.rootDir = rootDir;
+    }
+
+    @Override
+    void setDiskCache(DiskCache diskCache, String namespace) {
+        // the local clones are the cache already, and the branches in them change after each fetch
+        if (diskCache != null) {
+            diskCache.close();
+        }
+    }
+
+    @Override
+    List<Commit> fetchCommitsSince(URL repoURL, String branch, long since) {
+        // the same 'seconds timezone' format as git stores
+        return log(repository(RepoUtils.localFile(repoURL), repoURL.toString()), "--since=@" + since / 1000 + " +0000", revision(branch));
+    }
+
+    @Override
+    List<Commit> getCommitsBetween(String repoIdOrName, String base, String head) {
+        return log(repository(repoIdOrName), revision(base) + ".." + revision(head));
+    }
+
+    @Override
+    List<FilePatch> fetchCommitFiles(String repoIdOrName, String sha) {
+        // merge commits are compared with the first parent, like what the git services do
+        String show = git(repository(repoIdOrName), "show", "--format=", "--patch", "-m", "--first-parent", "--no-color", "--no-ext-diff", revision(sha));
+        return parseFilePatches(show);
+    }
+
+    @Override
+    boolean isPatchIdCheap() {
+        return true;
+    }
+
+    @Override
+    Map<String, String> getPatchIds(String repoIdOrName, List<String> shas) {
+        Map<String, String> patchIds = new HashMap<>();
+        File repository = repository(repoIdOrName);
+        // the patches are fingerprinted one batch at a time, they are not kept in memory
+        for (int from = 0; from < shas.size(); from += PATCH_ID_BATCH_SIZE) {
+            List<String> args = new ArrayList<>(Arrays.asList("show", "--format=%x00%H", "--patch", "-m", "--first-parent", "--no-color", "--no-ext-diff"));
+            for (String sha : shas.subList(from, Math.min(from + PATCH_ID_BATCH_SIZE, shas.size()))) {
+                args.add(revision(sha));
+            }
+            for (String record : git(repository, args.toArray(new String[0])).split("\0")) {
+                int index = record.indexOf('\n');
+                if (index > 0) {
+                    String sha = record.substring(0, index);
+                    String patchId = PatchId.of(parseFilePatches(record.substring(index + 1)));
+                    cachePatchId(repoIdOrName, sha, patchId);
+                    if (patchId != null) {
+                        patchIds.put(sha, patchId);
+                    }
+                }
+            }
+        }
+        return patchIds;
+    }
+
+    // the revisions are put before '--', so the ones like '--output=file' would be taken as options of git
+    static String revision(String revision) {
+        if (revision == null || revision.isEmpty() || revision.startsWith("-")) {
+            throw new IllegalArgumentException("Invalid revision: " + revision);
+        }
+        return revision;
+    }
+
+    private File repository(String repoIdOrName) {
+        return repository(new File(rootDir, repoIdOrName), repoIdOrName);
+    }
+
+    // only the clones under the root directory, the ids like '../other' would run git in any directory
+    private File repository(File repository, String repoIdOrName) {
+        try {
+            File canonical = repository.getCanonicalFile();
+            if (!canonical.toPath().startsWith(rootDir.getCanonicalFile().toPath())) {
+                throw new IllegalArgumentException("The repository: " + repoIdOrName + " is not under: " + rootDir);
+            }
+            return canonical;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid repository: " + repoIdOrName, e);
+        }
+    }
+
+    private List<Commit> log(File repository, String... revisions) {
+        List<String> args = new ArrayList<>(Arrays.asList("log", "-z", "--format=%H%n%B"));
+        args.addAll(Arrays.asList(revisions));
+        args.add("--");
+        String log = git(repository, args.toArray(new String[0]));
+        List<Commit> commits = new ArrayList<>();
+        for (String record : log.split("\0")) {
+            int index = record.indexOf('\n');
+            if (index > 0) {
+                commits.add(new Commit(record.substring(0, index), record.substring(index + 1).trim()));
+            }
+        }
+        return commits;
+    }
+
+    // splits the output of 'git show' into the patch of each file, the patch starts from the first hunk header
+    static List<FilePatch> parseFilePatches(String show) {
+        List<FilePatch> files = new ArrayList<>();
+        String path = null;
+        StringBuilder patch = null;
+        for (String line : show.split("\n", -1)) {
+            if (line.startsWith("diff --git ")) {
+                if (path != null) {
+                    // no hunk for the binary files, the mode changes, the empty files and the renames
+                    files.add(new FilePatch(path, patch == null ? null : patch.toString()));
+                }
+                // 'diff --git a/path b/path', it is corrected by the '+++ b/path' line if there is one
+                path = line.substring(line.lastIndexOf(" b/") + 3);
+                patch = null;
+            } else if (path != null && patch == null) {
+                if (line.startsWith("+++ b/")) {
+                    path = line.substring(6);
+                } else if (line.startsWith("@@")) {
+                    patch = new StringBuilder(line);
+                }
+            } else if (patch != null) {
+                patch.append('\n').append(line);
+            }
+        }
+        if (path != null) {
+            files.add(new FilePatch(path, patch == null ? null : patch.toString()));
+        }
+        return files;
+    }
+
+    private String git(File repository, String... args) {
+        List<String> command = new ArrayList<>(Arrays.asList("git", "-c", "core.quotepath=false", "-C", repository.getAbsolutePath()));
+        command.addAll(Arrays.asList(args));
+        long start = System.nanoTime();
+        try {
+            Process process = new ProcessBuilder(command).start();
+            process.getOutputStream().close();
+            CompletableFuture<String> error = CompletableFuture.supplyAsync(() -> read(process.getErrorStream()));
+            String output = read(process.getInputStream());
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new RuntimeException("Failed to run: " + String.join(" ", command) + ", exit code: " + exitCode + ", " + error.join().trim());
+            }
+            return output;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to run: " + String.join(" ", command), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted when running: " + String.join(" ", command), e);
+        } finally {
+            metrics().record(Metrics.API + "git-" + args[0], System.nanoTime() - start);
+        }
+    }
+
+    private static String read(InputStream input) {
+        try (InputStream in = input) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read the output of git", e);
+        }
+    }
+
+}
@@ -11,12 +11,20 @@ import javax.json.JsonReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
@@ -42,13 +50,13 @@ public class Main implements Callable<Integer> {
 
     private static final Logger logger = Logger.getLogger("g_r_m.main");
 
-    @CommandLine.Option(names = {"-r", "--repo"}, description = "The repository URL, like: https://github.com/owner/repo", required = true, order = 1)
+    @CommandLine.Option(names = {"-r", "--repo"}, description = "The repository URL, like: https://github.com/owner/repo, or the path of a local clone", order = 1)
     private String repoURL;
 
-    @CommandLine.Option(names = {"-a", "--r1"}, description = "The lower revision as the base", required = true, order = 2)
+    @CommandLine.Option(names = {"-a", "--r1"}, description = "The lower revision as the base", order = 2)
     private String r1;
 
-    @CommandLine.Option(names = {"-b", "--r2"}, description = "The higher revision as the target", required = true, order = 3)
+    @CommandLine.Option(names = {"-b", "--r2"}, description = "The higher revision as the target", order = 3)
     private String r2;
 
     @CommandLine.Option(names = {"-u", "--user"}, description = "username used to interact with git service")
@@ -57,80 +65,401 @@ public class Main implements Callable<Integer> {
     @CommandLine.Option(names = {"-p", "--pass"}, description = "password used to interact with git service", interactive = true)
     private String password;
 
+    @CommandLine.Option(names = {"--format"}, description = "the format of the result: ${COMPLETION-CANDIDATES}, ndjson writes one JSON record per commit as it is found", defaultValue = "text", showDefaultValue = ALWAYS)
+    private Format format;
+
+    @CommandLine.Option(names = {"--output"}, paramLabel = "FILE", description = "the file to write the ndjson result to, defaults to the standard output")
+    private File output;
+
+    @CommandLine.Option(names = {"--stats"}, description = "adds the stats of the check to the result, like the API calls, the comparisons and the time of each phase")
+    private boolean stats;
+
+    @CommandLine.Option(names = {"--fail-fast"}, description = "stops at the first missing commit and exits with 1, for a pass or fail gate")
+    private boolean failFast;
+
+    @CommandLine.Option(paramLabel = "SECONDS", names = {"--timeout"}, description = "stops the check after the seconds and exits with 2, the commits not decided yet are reported as unresolved, no timeout if not specified")
+    private int timeout;
+
     @CommandLine.Option(names = {"-m", "--month"}, description = "how long to find commits, defaults to 1 year", defaultValue = "12", showDefaultValue = ALWAYS)
     private int month;
 
+    @CommandLine.Option(names = {"-t", "--concurrency"}, description = "how many commits are checked at the same time", defaultValue = "1", showDefaultValue = ALWAYS)
+    private int concurrency;
+
+    @CommandLine.Option(names = {"--compare"}, description = "only fetch commits which are not in both revisions using the compare API of the git service")
+    private boolean compareMode;
+
+    @CommandLine.Option(paramLabel = "FILE", names = {"--state"}, description = "state file to check only the commits new since the last check of the same revisions")
+    private File stateFile;
+
+    @CommandLine.Option(paramLabel = "DIR", names = {"--cache-dir"}, description = "directory of the persistent cache of commit patches and commit lists, not cached if not specified")
+    private File cacheDir;
+
+    @CommandLine.Option(paramLabel = "MB", names = {"--cache-size"}, description = "max size of the persistent cache in MB", defaultValue = "512", showDefaultValue = ALWAYS)
+    private long cacheSize;
+
+    @CommandLine.Option(paramLabel = "MB", names = {"--memory-cache-size"}, description = "max size of the commit patches kept in memory in MB", defaultValue = "64", showDefaultValue = ALWAYS)
+    private long memoryCacheSize;
+
     @CommandLine.Option(paramLabel = "FILE", names = {"-c", "--config"}, description = "Config file, content is in JSON format. See example from ./config.json.example", defaultValue = "~/config.json", showDefaultValue = ALWAYS)
     private File configFile;
 
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    enum Format {
+        text, ndjson
+    }
+
+    // parsed once from the config file
+    private List<RepositoryConfig> repositoryConfigs;
+    // one instance per git service and user in the batch and the server modes, so that the connection and the caches are shared by the repositories
+    private final Map<String, GitRevMissing> instances = new ConcurrentHashMap<>();
+
+    // the repository to check, with the credentials to access it
+    private static final class Target {
+        private final String projectId;
+        private final URL gitRootURL;
+        private final String username;
+        private final String password;
+
+        private Target(String projectId, URL gitRootURL, String username, String password) {
+            this.projectId = projectId;
+            this.gitRootURL = gitRootURL;
+            this.username = username;
+            this.password = password;
+        }
+    }
+
     @Override
     public Integer call() throws Exception {
+        if (repoURL == null || r1 == null || r2 == null) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Missing required options: '--repo', '--r1', '--r2', or use the 'pairs' or 'batch' sub command");
+        }
         if (r1.equals(r2)) {
             logger.info("Nothing to compare for the same version");
             return 0;
         }
-        URL gitRepoURL = new URL(repoURL);
-        final String projectId = RepoUtils.projectId(gitRepoURL);
-        logger.info("projectId: " + projectId);
-        URL gitRootURL = RepoUtils.canonicGitRootURL(gitRepoURL);
-        logger.log(Level.FINE, "gitRoot: " + gitRootURL + ", projectId: " + projectId + ", r1: " + r1 + ", r2: " + r2);
-        if ((username == null || password == null) && configFile == null) {
-            logger.log(Level.SEVERE, "No username/password nor config file specified.");
+        Target target = resolveRepository(repoURL);
+        if (target == null) {
             return 1;
         }
-        if (username == null || password == null) {
-            if (!configFile.exists() && !configFile.isAbsolute()) {
-                // try to check ~/config.json in home dir
-                configFile = Paths.get(System.getProperty("user.home"), configFile.getName()).toFile();
+        try (GitRevMissing gitRevMissing = createGitRevMissing(target)) {
+            if (timeout > 0) {
+                return checkWithTimeout(gitRevMissing, target.projectId);
+            }
+            if (failFast || format == Format.ndjson) {
+                return stream(gitRevMissing, target.projectId);
             }
-            logger.log(Level.FINE, "Using Config File: " + configFile.getAbsolutePath());
-            if (configFile.exists()) {
-                try (JsonReader jr = Json.createReader(Files.newInputStream(configFile.toPath()))) {
-                    JsonObject jsonObject = jr.readObject();
-                    JsonArray configs = jsonObject.getJsonArray("repositoryConfigs");
-                    if (configs == null) {
-                        logger.log(Level.SEVERE, "No repositoryConfigs found in the config file");
-                        return 1;
+            report(r1, r2, gitRevMissing.missingCommits(target.projectId, r1, r2, since()));
+            logger.log(Level.FINE, "Patches cache: " + gitRevMissing.getCacheStats());
+        }
+        return 0;
+    }
+
+    // reports the commits as they are found, and stops at the first missing one with --fail-fast
+    private int stream(GitRevMissing gitRevMissing, String projectId) throws IOException {
+        AtomicBoolean missing = new AtomicBoolean();
+        try (NdjsonWriter writer = format == Format.ndjson ? createNdjsonWriter() : null) {
+            gitRevMissing.missingCommits(projectId, r1, r2, since(), (commitInfo, suspicious) -> {
+                if (writer != null) {
+                    try {
+                        writer.write(r1, r2, commitInfo, suspicious);
+                    } catch (IOException e) {
+                        throw new RuntimeException("Failed to write the result", e);
                     }
-                    List<RepositoryConfig> repoConfigs = configs.stream()
-                            .map(JsonObject.class::cast)
-                            .map(json ->
-                                    new RepositoryConfig(
-                                            json.getString("url", null),
-                                            json.getString("username", null),
-                                            json.getString("password", null),
-                                            RepositoryType.valueOf(json.getString("type", null))))
-                            .collect(Collectors.toList());
-                    RepositoryConfig config = RepoUtils.filterConfig(repoConfigs, gitRepoURL);
-                    if (config != null) {
-                        username = config.getUsername();
-                        password = config.getPassword();
+                } else {
+                    logger.log(Level.WARNING, (suspicious ? "Suspicious" : "Missing") + " commit in " + r2 + ": " + commitInfo + "\n");
+                }
+                if (!suspicious) {
+                    missing.set(true);
+                }
+                return suspicious || !failFast;
+            });
+        }
+        if (!missing.get()) {
+            logger.info("Great, no missing commits found in " + r2 + " from " + r1 + "\n");
+        }
+        return failFast && missing.get() ? 1 : 0;
+    }
+
+    // the result is reported once the check is done or cancelled by the timeout
+    private int checkWithTimeout(GitRevMissing gitRevMissing, String projectId) throws IOException {
+        MissingCommit missingCommit = gitRevMissing.missingCommits(projectId, r1, r2, since(), CancellationToken.timeout(timeout * 1000L));
+        if (format == Format.ndjson) {
+            try (NdjsonWriter writer = createNdjsonWriter()) {
+                writer.write(r1, r2, missingCommit);
+            }
+        } else {
+            report(r1, r2, missingCommit);
+        }
+        if (missingCommit.isCancelled()) {
+            logger.log(Level.WARNING, "The check is not done in " + timeout + " seconds, " + missingCommit.getUnresolvedCommits().size()
+                    + " commits are not decided yet\n");
+            return 2;
+        }
+        return failFast && !missingCommit.getCommits().isEmpty() ? 1 : 0;
+    }
+
+    private NdjsonWriter createNdjsonWriter() throws IOException {
+        if (output == null) {
+            return new NdjsonWriter(System.out, false);
+        }
+        return new NdjsonWriter(Files.newOutputStream(output.toPath()), true);
+    }
+
+    @CommandLine.Command(name = "pairs", description = "Lists missing commits in each pair of revisions, the history of each revision is fetched once for all pairs")
+    int pairs(@CommandLine.Parameters(paramLabel = "A..B", arity = "0..*", description = "the revision pairs, like: 7.4.0..7.4.1") List<String> pairs,
+              @CommandLine.Option(paramLabel = "REV", names = {"--chain"}, arity = "2..*", description = "the revisions of an upgrade chain from the lowest to the highest") List<String> chain,
+              @CommandLine.Option(paramLabel = "REV", names = {"--from"}, arity = "1..*", description = "the revisions from which the commits are listed, each of them is checked against each of '--to'") List<String> from,
+              @CommandLine.Option(paramLabel = "REV", names = {"--to"}, arity = "1..*", description = "the revisions to which the commits may be missing") List<String> to) throws Exception {
+        List<RevisionPair> revisionPairs = new ArrayList<>();
+        if (pairs != null) {
+            for (String pair : pairs) {
+                revisionPairs.add(RevisionPair.parse(pair));
+            }
+        }
+        if (chain != null) {
+            revisionPairs.addAll(RevisionPair.chain(chain));
+        }
+        if (from != null && to != null) {
+            revisionPairs.addAll(RevisionPair.matrix(from, to));
+        }
+        revisionPairs.removeIf(pair -> pair.getRevA().equals(pair.getRevB()));
+        if (repoURL == null) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Missing required option: '--repo'");
+        }
+        if (revisionPairs.isEmpty()) {
+            logger.info("Nothing to compare, no revision pairs are specified");
+            return 0;
+        }
+        Target target = resolveRepository(repoURL);
+        if (target == null) {
+            return 1;
+        }
+        try (GitRevMissing gitRevMissing = createGitRevMissing(target)) {
+            Map<RevisionPair, MissingCommit> missingCommits = gitRevMissing.missingCommits(target.projectId, revisionPairs, since());
+            if (format == Format.ndjson) {
+                try (NdjsonWriter writer = createNdjsonWriter()) {
+                    for (Map.Entry<RevisionPair, MissingCommit> entry : missingCommits.entrySet()) {
+                        writer.write(entry.getKey().getRevA(), entry.getKey().getRevB(), entry.getValue());
                     }
-                } catch (IOException e) {
-                    throw new RuntimeException("Failed to read the config file", e);
                 }
             } else {
-                logger.log(Level.SEVERE, "No a valid config file: " + configFile);
-                return 1;
+                for (Map.Entry<RevisionPair, MissingCommit> entry : missingCommits.entrySet()) {
+                    report(entry.getKey().getRevA(), entry.getKey().getRevB(), entry.getValue());
+                }
             }
+            logger.log(Level.FINE, "Patches cache: " + gitRevMissing.getCacheStats());
         }
-        try (GitRevMissing gitRevMissing = GitRevMissing.create(gitRootURL, username, password)) {
-            MissingCommit missCommit = gitRevMissing.missingCommits(projectId, r1, r2, Instant.now().toEpochMilli() - month * GitRevMissingImpl.MONTH_MILLI);
-            if (missCommit.isClean()) {
-                logger.info("Great, no missing commits found\n");
-            } else {
-                if (missCommit.getCommits() != null && !missCommit.getCommits().isEmpty()) {
-                    logger.log(Level.WARNING, missCommit.getCommits().size() + " commits were missing in " + r2 + "\n");
+        return 0;
+    }
+
+    private long since() {
+        return since(month);
+    }
+
+    private static long since(int month) {
+        return Instant.now().toEpochMilli() - month * GitRevMissingImpl.MONTH_MILLI;
+    }
+
+    @CommandLine.Command(name = "batch", description = "Checks the repositories and revision pairs in a manifest file in one run, and writes one combined JSON result")
+    int batch(@CommandLine.Parameters(paramLabel = "MANIFEST", description = "the manifest file in JSON format, see the javadoc of Batch") File manifest,
+              @CommandLine.Option(paramLabel = "FILE", names = {"-o", "--output"}, description = "the file to write the result to, defaults to the standard output") File output,
+              @CommandLine.Option(paramLabel = "N", names = {"--workers"}, defaultValue = "4", showDefaultValue = ALWAYS, description = "how many repositories are checked at the same time") int workers) throws Exception {
+        List<Batch.Entry> entries = Batch.readManifest(manifest);
+        logger.info(entries.size() + " repositories are found in the manifest: " + manifest);
+        try {
+            List<List<Batch.Result>> results = ExecutorUtils.mapConcurrently(entries,
+                    this::checkEntry, ExecutorUtils.defaultExecutor(), workers);
+            List<Batch.Result> combined = new ArrayList<>();
+            boolean failed = false;
+            for (List<Batch.Result> entryResults : results) {
+                for (Batch.Result result : entryResults) {
+                    failed |= result.getError() != null;
+                    combined.add(result);
                 }
-                if (missCommit.getSuspiciousCommits() != null && !missCommit.getSuspiciousCommits().isEmpty()) {
-                    logger.log(Level.WARNING, missCommit.getSuspiciousCommits().size() + " commits were suspicious in " + r1 + "\n");
+            }
+            if (output == null) {
+                Batch.writeResults(combined, System.out);
+                System.out.println();
+            } else {
+                try (OutputStream out = Files.newOutputStream(output.toPath())) {
+                    Batch.writeResults(combined, out);
                 }
-                logger.log(Level.WARNING, missCommit + "\n");
+            }
+            return failed ? 1 : 0;
+        } finally {
+            closeInstances();
+        }
+    }
+
+    @CommandLine.Command(name = "serve", description = "Runs an HTTP server which checks the missing commits on requests, keeping the caches warm between them")
+    int serve(@CommandLine.Option(paramLabel = "HOST", names = {"--host"}, defaultValue = "localhost", showDefaultValue = ALWAYS, description = "the address to listen on") String host,
+              @CommandLine.Option(paramLabel = "PORT", names = {"--port"}, defaultValue = "8080", showDefaultValue = ALWAYS, description = "the port to listen on") int port,
+              @CommandLine.Option(paramLabel = "N", names = {"--threads"}, defaultValue = "8", showDefaultValue = ALWAYS, description = "how many requests are handled at the same time") int threads,
+              @CommandLine.Option(paramLabel = "SECONDS", names = {"--history-ttl"}, defaultValue = "60", showDefaultValue = ALWAYS, description = "how long the commit lists of the revisions are kept in memory") int historyTtl,
+              @CommandLine.Option(paramLabel = "URL", names = {"--allow"}, description = "the URL of a repository, or of the git service or the owner of repositories, which can be checked, defaults to the URLs in the config file") List<String> allow) throws Exception {
+        List<String> allowedRepositories = new ArrayList<>();
+        if (allow != null) {
+            allowedRepositories.addAll(allow);
+        } else if (repositoryConfigs() != null) {
+            for (RepositoryConfig config : repositoryConfigs()) {
+                allowedRepositories.add(config.getUrl());
             }
         }
+        if (allowedRepositories.isEmpty()) {
+            logger.warning("No repository is allowed to check, use --allow or the config file");
+        } else {
+            logger.info("The repositories allowed to check: " + allowedRepositories);
+        }
+        final Server server = new Server((repo, revA, revB, month) -> {
+            Target target = resolveRepository(repo);
+            if (target == null) {
+                throw new IllegalArgumentException("Not able to resolve the repository or its credentials: " + repo);
+            }
+            GitRevMissing gitRevMissing = gitRevMissing(target).setHistoryCacheTtl(TimeUnit.SECONDS.toMillis(historyTtl));
+            return gitRevMissing.missingCommits(target.projectId, revA, revB, since(month));
+        }, month, allowedRepositories);
+        server.start(new InetSocketAddress(host, port), threads);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            closeInstances();
+            stopped.countDown();
+        }));
+        stopped.await();
         return 0;
     }
 
+    private GitRevMissing gitRevMissing(Target target) {
+        return instances.computeIfAbsent(target.username + "@" + target.gitRootURL, k -> createGitRevMissing(target));
+    }
+
+    private void closeInstances() {
+        for (GitRevMissing gitRevMissing : instances.values()) {
+            gitRevMissing.close();
+        }
+        instances.clear();
+    }
+
+    private List<Batch.Result> checkEntry(Batch.Entry entry) {
+        List<Batch.Result> results = new ArrayList<>();
+        try {
+            Target target = resolveRepository(entry.repo);
+            if (target == null) {
+                results.add(Batch.Result.error(entry.repo, "Not able to resolve the repository or its credentials"));
+                return results;
+            }
+            GitRevMissing gitRevMissing = gitRevMissing(target);
+            Map<RevisionPair, MissingCommit> missingCommits = gitRevMissing.missingCommits(target.projectId, entry.pairs, since());
+            for (Map.Entry<RevisionPair, MissingCommit> e : missingCommits.entrySet()) {
+                results.add(Batch.Result.of(entry.repo, e.getKey(), e.getValue()));
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Failed to check repository: " + entry.repo, e);
+            results.add(Batch.Result.error(entry.repo, String.valueOf(e.getMessage())));
+        }
+        return results;
+    }
+
+    // resolves the projectId, the gitRootURL and the credentials from the options and the config file, null if it fails
+    private Target resolveRepository(String repoURL) throws IOException {
+        URL gitRepoURL = RepoUtils.repoURL(repoURL);
+        final boolean local = RepoUtils.isLocal(gitRepoURL);
+        final String projectId;
+        final URL gitRootURL;
+        if (local) {
+            // the local clone is looked up by its name in the parent directory
+            File repoDir = RepoUtils.localFile(gitRepoURL).getAbsoluteFile();
+            projectId = repoDir.getName();
+            gitRootURL = repoDir.getParentFile().toURI().toURL();
+        } else {
+            projectId = RepoUtils.projectId(gitRepoURL);
+            gitRootURL = RepoUtils.canonicGitRootURL(gitRepoURL);
+        }
+        logger.info("projectId: " + projectId);
+        logger.log(Level.FINE, "gitRoot: " + gitRootURL + ", projectId: " + projectId);
+        if (local || (username != null && password != null)) {
+            return new Target(projectId, gitRootURL, username, password);
+        }
+        List<RepositoryConfig> repoConfigs = repositoryConfigs();
+        if (repoConfigs == null) {
+            return null;
+        }
+        RepositoryConfig config = RepoUtils.filterConfig(repoConfigs, gitRepoURL);
+        if (config != null) {
+            return new Target(projectId, gitRootURL, config.getUsername(), config.getPassword());
+        }
+        return new Target(projectId, gitRootURL, username, password);
+    }
+
+    private synchronized List<RepositoryConfig> repositoryConfigs() {
+        if (repositoryConfigs != null) {
+            return repositoryConfigs;
+        }
+        if (configFile == null) {
+            logger.log(Level.SEVERE, "No username/password nor config file specified.");
+            return null;
+        }
+        if (!configFile.exists() && !configFile.isAbsolute()) {
+            // try to check ~/config.json in home dir
+            configFile = Paths.get(System.getProperty("user.home"), configFile.getName()).toFile();
+        }
+        logger.log(Level.FINE, "Using Config File: " + configFile.getAbsolutePath());
+        if (!configFile.exists()) {
+            logger.log(Level.SEVERE, "No a valid config file: " + configFile);
+            return null;
+        }
+        try (JsonReader jr = Json.createReader(Files.newInputStream(configFile.toPath()))) {
+            JsonObject jsonObject = jr.readObject();
+            JsonArray configs = jsonObject.getJsonArray("repositoryConfigs");
+            if (configs == null) {
+                logger.log(Level.SEVERE, "No repositoryConfigs found in the config file");
+                return null;
+            }
+            repositoryConfigs = configs.stream()
+                    .map(JsonObject.class::cast)
+                    .map(json ->
+                            new RepositoryConfig(
+                                    json.getString("url", null),
+                                    json.getString("username", null),
+                                    json.getString("password", null),
+                                    RepositoryType.valueOf(json.getString("type", null))))
+                    .collect(Collectors.toList());
+            return repositoryConfigs;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read the config file", e);
+        }
+    }
+
+    private GitRevMissing createGitRevMissing(Target target) {
+        GitRevMissing gitRevMissing = GitRevMissing.create(target.gitRootURL, target.username, target.password)
+                .setConcurrency(concurrency).setCompareMode(compareMode).setMemoryCacheSize(memoryCacheSize * 1024 * 1024)
+                .setStatsEnabled(stats);
+        if (cacheDir != null) {
+            gitRevMissing.setDiskCache(cacheDir, cacheSize * 1024 * 1024);
+        }
+        if (stateFile != null) {
+            gitRevMissing.setStateFile(stateFile);
+        }
+        return gitRevMissing;
+    }
+
+    private void report(String revA, String revB, MissingCommit missCommit) {
+        if (missCommit.isClean()) {
+            logger.info("Great, no missing commits found in " + revB + " from " + revA + "\n");
+        } else {
+            if (missCommit.getCommits() != null && !missCommit.getCommits().isEmpty()) {
+                logger.log(Level.WARNING, missCommit.getCommits().size() + " commits were missing in " + revB + "\n");
+            }
+            if (missCommit.getSuspiciousCommits() != null && !missCommit.getSuspiciousCommits().isEmpty()) {
+                logger.log(Level.WARNING, missCommit.getSuspiciousCommits().size() + " commits were suspicious in " + revA + "\n");
+            }
+            logger.log(Level.WARNING, missCommit + "\n");
+        }
+    }
+
     public static void main(String[] args) {
         int exitCode = new CommandLine(new Main()).execute(args);
         System.exit(exitCode);
@@ -0,0 +1,174 @@
+package io.github.gaol.git_rev_missing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The timers of a connection to the git service, they are shared by the checks using the connection.
+ *
+ * The timers are named by what is timed:
+ * <ul>
+ *     <li><code>api.&lt;endpoint&gt;</code> the calls to the git service, or the <code>git</code> commands of the local clones</li>
+ *     <li><code>wait.rate-limit</code> the waits for the rate limit of the git service</li>
+ *     <li><code>compare.patches</code> the comparisons of the patches of 2 commits</li>
+ *     <li><code>compare.messages</code> the similarities of 2 commit messages, timed by lookup</li>
+ *     <li><code>phase.&lt;phase&gt;</code> the wall time of the phases of the checks</li>
+ * </ul>
+ *
+ * Each check has its own metrics as well, which are bound to the threads working for it by {@link #bind(Supplier)}
+ * and {@link #inCheck(Callable)}, the timers and the cache counters recorded on those threads are counted in both.
+ * So the stats of a check do not include the other checks running on the same connection at the same time.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class Metrics {
+
+    static final String API = "api.";
+    static final String RATE_LIMIT_WAIT = "wait.rate-limit";
+    static final String PATCH_COMPARISONS = "compare.patches";
+    static final String MESSAGE_COMPARISONS = "compare.messages";
+    static final String PHASE = "phase.";
+
+    private static final class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+    }
+
+    private static final class CacheCounters {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder evictedWeight = new LongAdder();
+    }
+
+    // the metrics of the check the current thread works for
+    private static final ThreadLocal<Metrics> CHECK = new ThreadLocal<>();
+
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, CacheCounters> caches = new ConcurrentHashMap<>();
+
+    void record(String name, long nanos) {
+        record(name, 1, nanos);
+    }
+
+    /**
+     * Records the time of <code>count</code> events which are timed together.
+     */
+    void record(String name, long count, long nanos) {
+        add(name, count, nanos);
+        Metrics check = CHECK.get();
+        if (check != null && check != this) {
+            check.add(name, count, nanos);
+        }
+    }
+
+    private void add(String name, long count, long nanos) {
+        Timer timer = timers.computeIfAbsent(name, k -> new Timer());
+        timer.count.add(count);
+        timer.nanos.add(nanos);
+    }
+
+    /**
+     * Counts the lookups and the evictions of the in-memory cache in the metrics of the check the current thread works
+     * for, the cache keeps the counters of the connection itself.
+     */
+    static void countCache(String cache, long hits, long misses, long evictions, long evictedWeight) {
+        Metrics check = CHECK.get();
+        if (check != null) {
+            CacheCounters counters = check.caches.computeIfAbsent(cache, k -> new CacheCounters());
+            counters.hits.add(hits);
+            counters.misses.add(misses);
+            counters.evictions.add(evictions);
+            counters.evictedWeight.add(evictedWeight);
+        }
+    }
+
+    /**
+     * Runs the task with these metrics as the ones of the check the current thread works for.
+     */
+    <T> T bind(Supplier<T> task) {
+        Metrics previous = CHECK.get();
+        CHECK.set(this);
+        try {
+            return task.get();
+        } finally {
+            restore(previous);
+        }
+    }
+
+    /**
+     * @return the task which works for the same check as the current thread, for the tasks run by the executors
+     */
+    static <T> Callable<T> inCheck(Callable<T> task) {
+        Metrics check = CHECK.get();
+        if (check == null) {
+            return task;
+        }
+        return () -> {
+            Metrics previous = CHECK.get();
+            CHECK.set(check);
+            try {
+                return task.call();
+            } finally {
+                restore(previous);
+            }
+        };
+    }
+
+    private static void restore(Metrics previous) {
+        if (previous == null) {
+            CHECK.remove();
+        } else {
+            CHECK.set(previous);
+        }
+    }
+
+    /**
+     * Runs the request, its time is recorded even when it fails.
+     */
+    <T, E extends Exception> T time(String name, RequestScheduler.Request<T, E> request) throws E {
+        long start = System.nanoTime();
+        try {
+            return request.call();
+        } finally {
+            record(name, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return a snapshot of the timers, by name
+     */
+    Map<String, TimerStats> snapshot() {
+        Map<String, TimerStats> snapshot = new TreeMap<>();
+        for (Map.Entry<String, Timer> e : timers.entrySet()) {
+            snapshot.put(e.getKey(), new TimerStats(e.getValue().count.sum(), e.getValue().nanos.sum()));
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the counters of the caches counted in these metrics, with the size and the weight of the caches now
+     */
+    Map<String, CacheStats> cacheStats(Map<String, CacheStats> current) {
+        Map<String, CacheStats> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, CacheStats> e : current.entrySet()) {
+            CacheCounters counters = caches.get(e.getKey());
+            CacheStats cache = e.getValue();
+            stats.put(e.getKey(), counters == null ? new CacheStats(0, 0, 0, 0, cache.getSize(), cache.getWeight(), cache.getMaxWeight())
+                    : new CacheStats(counters.hits.sum(), counters.misses.sum(), counters.evictions.sum(), counters.evictedWeight.sum(),
+                    cache.getSize(), cache.getWeight(), cache.getMaxWeight()));
+        }
+        return stats;
+    }
+
+    void reset() {
+        timers.clear();
+        caches.clear();
+    }
+
+}
@@ -0,0 +1,28 @@
+package io.github.gaol.git_rev_missing;
+
+import java.util.Map;
+
+/**
+ * The metrics of a connection to the git service in JMX, registered as
+ * <code>io.github.gaol.git_rev_missing:type=RepoService,name=&lt;user@host&gt;</code> while it is used.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return the API calls, the rate limit waits, the comparisons and the phases since it is created or reset, see {@link CheckStats#getTimers()}
+     */
+    Map<String, TimerStats> getTimers();
+
+    /**
+     * @return the counters of the in-memory caches, see {@link CheckStats#getCaches()}
+     */
+    Map<String, CacheStats> getCaches();
+
+    /**
+     * Resets the timers, the cache counters are not reset.
+     */
+    void reset();
+
+}
@@ -25,6 +25,25 @@ public class MissingCommit {
     @JsonInclude(JsonInclude.Include.NON_EMPTY)
     private List<CommitInfo> suspiciousCommits;
 
+    /**
+     * The commits which are not decided yet when the check is cancelled, see {@link CancellationToken}, they may be
+     * missing or not.
+     */
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    private List<CommitInfo> unresolvedCommits;
+
+    /**
+     * Whether the check is cancelled before all commits are decided.
+     */
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private boolean cancelled;
+
+    /**
+     * The stats of the check, only when it is enabled by {@link GitRevMissing#setStatsEnabled(boolean)}
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private CheckStats stats;
+
     public List<CommitInfo> getSuspiciousCommits() {
         return suspiciousCommits;
     }
@@ -44,8 +63,45 @@ public class MissingCommit {
         return this;
     }
 
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    public List<CommitInfo> getUnresolvedCommits() {
+        return unresolvedCommits;
+    }
+
+    public MissingCommit setUnresolvedCommits(List<CommitInfo> unresolvedCommits) {
+        this.unresolvedCommits = unresolvedCommits;
+        return this;
+    }
+
+    /**
+     * When it is cancelled, the commits in {@link #getCommits()} and {@link #getSuspiciousCommits()} are decided, and
+     * the ones not decided yet are in {@link #getUnresolvedCommits()}. The commits in <code>revA</code> are not known
+     * if it is cancelled before they are listed, in which case there are no unresolved commits either.
+     *
+     * @return <code>true</code> if the check is cancelled before all commits are decided
+     */
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public MissingCommit setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+        return this;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public CheckStats getStats() {
+        return stats;
+    }
+
+    public MissingCommit setStats(CheckStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
     public boolean isClean() {
-        return (commits == null || commits.isEmpty()) && (suspiciousCommits == null || suspiciousCommits.isEmpty());
+        return !cancelled && (commits == null || commits.isEmpty()) && (suspiciousCommits == null || suspiciousCommits.isEmpty());
     }
 
     @Override
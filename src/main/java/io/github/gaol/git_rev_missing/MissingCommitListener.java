@@ -0,0 +1,24 @@
+package io.github.gaol.git_rev_missing;
+
+/**
+ * Listener of the commits which are missing or suspicious, it is called as soon as each of them is decided.
+ *
+ * @see GitRevMissing#missingCommits(String, String, String, long, MissingCommitListener)
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+@FunctionalInterface
+public interface MissingCommitListener {
+
+    /**
+     * Called when a commit in <code>revA</code> is decided to be missing or suspicious in <code>revB</code>.
+     * <p>
+     *     It is called by one thread at a time, but not always the same thread, nor in the order of the history.
+     * </p>
+     *
+     * @param commitInfo the commit, with the link to the suspicious one in <code>revB</code> if it is suspicious
+     * @param suspicious <code>true</code> if the commit is suspicious, <code>false</code> if it is missing
+     * @return <code>true</code> to continue the check, <code>false</code> to stop it
+     */
+    boolean onCommit(CommitInfo commitInfo, boolean suspicious);
+
+}
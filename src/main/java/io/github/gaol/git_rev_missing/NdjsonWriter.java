@@ -0,0 +1,78 @@
+package io.github.gaol.git_rev_missing;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the missing and suspicious commits as newline delimited JSON, one record per commit, like:
+ * <pre>
+ * {"revA":"7.4.0","revB":"7.4.1","type":"missing","sha":"...","message":"...","commitLink":"..."}
+ * {"revA":"7.4.0","revB":"7.4.1","type":"suspicious","sha":"...","message":"...","commitLink":"...","targetLink":"..."}
+ * </pre>
+ *
+ * Each record is flushed once it is written, nothing else is kept in memory.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class NdjsonWriter implements Closeable {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final JsonGenerator generator;
+
+    /**
+     * @param out the stream to write to
+     * @param closeOutput whether to close the stream when the writer is closed, <code>false</code> for the standard output
+     */
+    NdjsonWriter(OutputStream out, boolean closeOutput) throws IOException {
+        generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8);
+        generator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, closeOutput);
+        // the records are separated by the new lines only
+        generator.setRootValueSeparator(null);
+    }
+
+    void write(String revA, String revB, CommitInfo commitInfo, boolean suspicious) throws IOException {
+        write(revA, revB, commitInfo, suspicious ? "suspicious" : "missing");
+    }
+
+    private synchronized void write(String revA, String revB, CommitInfo commitInfo, String type) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("revA", revA);
+        generator.writeStringField("revB", revB);
+        generator.writeStringField("type", type);
+        generator.writeStringField("sha", commitInfo.getCommit().getSha());
+        generator.writeStringField("message", commitInfo.getCommit().getMessage());
+        generator.writeStringField("commitLink", commitInfo.getCommitLink());
+        if (commitInfo.getTargetLink() != null) {
+            generator.writeStringField("targetLink", commitInfo.getTargetLink());
+        }
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+        generator.flush();
+    }
+
+    void write(String revA, String revB, MissingCommit missingCommit) throws IOException {
+        for (CommitInfo commitInfo : missingCommit.getCommits()) {
+            write(revA, revB, commitInfo, false);
+        }
+        for (CommitInfo commitInfo : missingCommit.getSuspiciousCommits()) {
+            write(revA, revB, commitInfo, true);
+        }
+        if (missingCommit.getUnresolvedCommits() != null) {
+            for (CommitInfo commitInfo : missingCommit.getUnresolvedCommits()) {
+                write(revA, revB, commitInfo, "unresolved");
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        generator.close();
+    }
+
+}
@@ -0,0 +1,101 @@
+package io.github.gaol.git_rev_missing;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A fingerprint of the changes of a commit, like what <code>git patch-id --stable</code> does.
+ *
+ * It is the hash of the patches with the hunk headers and all whitespaces removed, and it does not depend on the
+ * order of the files, so a commit which is cherry-picked or rebased without conflicts has the same fingerprint.
+ * A commit with a file without patch text, like a binary file, has no fingerprint, since the unrelated changes of the
+ * same file would have the same one.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class PatchId {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private PatchId() {
+    }
+
+    /**
+     * @return the fingerprint of the files, or <code>null</code> if there is no file changed, like in a merge commit,
+     * or any of them has no patch text.
+     */
+    static String of(List<FilePatch> files) {
+        if (files.isEmpty()) {
+            return null;
+        }
+        List<String> fileIds = new ArrayList<>(files.size());
+        for (FilePatch file : files) {
+            if (!file.hasPatch()) {
+                return null;
+            }
+            fileIds.add(fileId(file));
+        }
+        Collections.sort(fileIds);
+        MessageDigest digest = sha1();
+        for (String fileId : fileIds) {
+            digest.update(fileId.getBytes(StandardCharsets.US_ASCII));
+        }
+        return hex(digest.digest());
+    }
+
+    static String fileId(FilePatch file) {
+        MessageDigest digest = sha1();
+        digest.update(file.getPath().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(file.getContentId().getBytes(StandardCharsets.US_ASCII));
+        return hex(digest.digest());
+    }
+
+    /**
+     * @return the hash of the patch with the hunk headers and all whitespaces removed, the path is not included.
+     */
+    static String contentId(String patch) {
+        MessageDigest digest = sha1();
+        StringBuilder normalized = new StringBuilder();
+        for (String line : patch.split("\n")) {
+            if (line.startsWith("@@")) {
+                // the location of the hunk
+                continue;
+            }
+            normalized.setLength(0);
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (!Character.isWhitespace(c)) {
+                    normalized.append(c);
+                }
+            }
+            if (normalized.length() > 0) {
+                digest.update(normalized.toString().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+}
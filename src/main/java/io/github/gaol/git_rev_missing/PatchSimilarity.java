@@ -0,0 +1,184 @@
+package io.github.gaol.git_rev_missing;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Similarity of 2 patches as the ratio of the unchanged characters, like what <code>difflib</code> does:
+ * <code>(n + m - D) / (n + m)</code>, where <code>D</code> is the number of the characters inserted or deleted in the
+ * shortest edit script between them.
+ *
+ * The edit script is found by the Myers algorithm which stops once the threshold can no longer be reached, so the cost
+ * is <code>O((n + m) * D)</code> with <code>D</code> at most <code>(1 - threshold) * (n + m)</code>. When it is still
+ * too expensive for huge patches, the lines are compared instead of the characters. When even that is too expensive,
+ * the lines in common regardless of their order are counted, which gives an upper bound of the ratio of the lines, so
+ * 2 huge patches with the same lines in another order may be suspicious rather than different.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class PatchSimilarity {
+
+    // max steps of the Myers algorithm for one comparison
+    static final long MAX_COST = 20_000_000L;
+
+    private PatchSimilarity() {
+    }
+
+    /**
+     * Gets the similarity ratio between 2 patches.
+     *
+     * @return the ratio in <code>[0, 1]</code>, it is exact if it is above the threshold, otherwise it is a value not above the threshold.
+     * For the huge patches it is the ratio of the lines instead, or an upper bound of it, see {@link #lineRatio(String, String, double)}.
+     */
+    static double ratio(String patch1, String patch2, double threshold) {
+        if (patch1.equals(patch2)) {
+            return 1.0d;
+        }
+        int total = patch1.length() + patch2.length();
+        int maxD = maxDistance(total, threshold);
+        if (maxD < 0 || Math.abs(patch1.length() - patch2.length()) > maxD) {
+            // at least the length difference is inserted or deleted
+            return ratio(total, Math.max(maxD + 1, Math.abs(patch1.length() - patch2.length())));
+        }
+        int prefix = commonPrefix(patch1, patch2);
+        int suffix = commonSuffix(patch1, patch2, prefix);
+        int[] a = chars(patch1, prefix, patch1.length() - suffix);
+        int[] b = chars(patch2, prefix, patch2.length() - suffix);
+        if ((long) (a.length + b.length) * (maxD + 1) <= MAX_COST) {
+            int d = distance(a, b, maxD);
+            return ratio(total, d < 0 ? maxD + 1 : d);
+        }
+        return lineRatio(patch1, patch2, threshold);
+    }
+
+    /**
+     * The same ratio on the lines, each line is an element.
+     *
+     * @return the ratio of the lines, it is exact if it is above the threshold when the lines can be compared within
+     * {@link #MAX_COST}, otherwise it is an upper bound computed on the lines in common regardless of their order
+     */
+    static double lineRatio(String patch1, String patch2, double threshold) {
+        int[] lines1 = lines(patch1);
+        int[] lines2 = lines(patch2);
+        int total = lines1.length + lines2.length;
+        int maxD = maxDistance(total, threshold);
+        if (maxD < 0 || Math.abs(lines1.length - lines2.length) > maxD) {
+            return ratio(total, Math.max(maxD + 1, Math.abs(lines1.length - lines2.length)));
+        }
+        int prefix = 0;
+        int max = Math.min(lines1.length, lines2.length);
+        while (prefix < max && lines1[prefix] == lines2[prefix]) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix && lines1[lines1.length - 1 - suffix] == lines2[lines2.length - 1 - suffix]) {
+            suffix++;
+        }
+        int[] a = Arrays.copyOfRange(lines1, prefix, lines1.length - suffix);
+        int[] b = Arrays.copyOfRange(lines2, prefix, lines2.length - suffix);
+        if ((long) (a.length + b.length) * (maxD + 1) <= MAX_COST) {
+            int d = distance(a, b, maxD);
+            return ratio(total, d < 0 ? maxD + 1 : d);
+        }
+        // an upper bound, the edit script needs at least the lines which are not in common
+        return ratio(total, a.length + b.length - 2 * commonLines(a, b));
+    }
+
+    // the lines in common regardless of the order, it is not less than the lines in the longest common subsequence
+    private static int commonLines(int[] a, int[] b) {
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int line : a) {
+            counts.merge(line, 1, Integer::sum);
+        }
+        int common = 0;
+        for (int line : b) {
+            Integer count = counts.get(line);
+            if (count != null && count > 0) {
+                counts.put(line, count - 1);
+                common++;
+            }
+        }
+        return common;
+    }
+
+    /**
+     * The Myers algorithm, it returns the number of the elements inserted or deleted to change a to b,
+     * or <code>-1</code> if it is more than maxD.
+     */
+    static int distance(int[] a, int[] b, int maxD) {
+        int n = a.length;
+        int m = b.length;
+        if (n == 0 || m == 0) {
+            return n + m <= maxD ? n + m : -1;
+        }
+        int offset = maxD + 1;
+        // the furthest x on each diagonal k = x - y
+        int[] v = new int[2 * maxD + 3];
+        for (int d = 0; d <= maxD; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+                    x = v[offset + k + 1];
+                } else {
+                    x = v[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[x] == b[y]) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    return d;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // max distance for a ratio above the threshold, negative if even the same ones are not above it
+    private static int maxDistance(int total, double threshold) {
+        return (int) Math.ceil((1.0d - threshold) * total) - 1;
+    }
+
+    private static double ratio(int total, int distance) {
+        return total == 0 ? 1.0d : (double) Math.max(0, total - distance) / total;
+    }
+
+    private static int commonPrefix(String s1, String s2) {
+        int max = Math.min(s1.length(), s2.length());
+        int i = 0;
+        while (i < max && s1.charAt(i) == s2.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int commonSuffix(String s1, String s2, int prefix) {
+        int max = Math.min(s1.length(), s2.length()) - prefix;
+        int i = 0;
+        while (i < max && s1.charAt(s1.length() - 1 - i) == s2.charAt(s2.length() - 1 - i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int[] chars(String s, int from, int to) {
+        int[] chars = new int[to - from];
+        for (int i = from; i < to; i++) {
+            chars[i - from] = s.charAt(i);
+        }
+        return chars;
+    }
+
+    private static int[] lines(String s) {
+        String[] lines = s.split("\n", -1);
+        int[] hashes = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            hashes[i] = lines[i].hashCode();
+        }
+        return hashes;
+    }
+
+}
@@ -8,15 +8,51 @@ import org.jboss.set.aphrodite.repository.services.github.GitHubRepositoryServic
 import org.jboss.set.aphrodite.repository.services.gitlab.GitLabRepositoryService;
 import org.jboss.set.aphrodite.spi.RepositoryService;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 abstract class RepoService {
 
+    private static final Logger logger = Logger.getLogger("g_r_m.service");
+    static final String METRICS_DOMAIN = "io.github.gaol.git_rev_missing";
+    static final long DEFAULT_MEMORY_CACHE_SIZE = 64L * 1024 * 1024;
+    static final String DISK_CACHE = "disk cache";
+    static final String MEMORY_CACHE_SIZE = "memory cache size";
+    static final String HISTORY_CACHE_TTL = "history cache TTL";
+    private static final Map<String, Object> DEFAULT_SETTINGS = new HashMap<>();
+    static {
+        DEFAULT_SETTINGS.put(MEMORY_CACHE_SIZE, DEFAULT_MEMORY_CACHE_SIZE);
+        DEFAULT_SETTINGS.put(HISTORY_CACHE_TTL, 0L);
+    }
+    // the fingerprints are much smaller than the patches
+    private static final long PATCH_ID_CACHE_RATIO = 16;
+    private static final long HISTORY_CACHE_RATIO = 4;
+    // the max page size of both GitHub and GitLab
+    static final int COMMITS_PAGE_SIZE = 100;
+    // it has no state
+    private static final JaroWinklerDistance JARO_WINKLER = new JaroWinklerDistance();
+
     static RepoService createRepoService(URL gitRootURL, String username, String password) {
         RepoService repoService;
-        if (gitRootURL.getHost().toLowerCase().contains("github.com")) {
+        if (RepoUtils.isLocal(gitRootURL)) {
+            repoService = new LocalGitRepoService(RepoUtils.localFile(gitRootURL));
+        } else if (gitRootURL.getHost().toLowerCase().contains("github.com")) {
             RepositoryConfig config = new RepositoryConfig(gitRootURL.toString(), username, password, RepositoryType.GITHUB);
             RepositoryService repositoryService = new GitHubRepositoryService();
             repositoryService.init(config);
@@ -33,23 +69,514 @@ abstract class RepoService {
     }
 
     private final RepositoryService repositoryService;
+    private final Metrics metrics = new Metrics();
+    private volatile ObjectName metricsName;
+    private RequestScheduler scheduler;
+    private volatile DiskCache diskCache;
+    private volatile String cacheNamespace;
+    private final WeightedCache<String, List<FilePatch>> cachedFiles = new WeightedCache<>("patches", FilePatch::weight, DEFAULT_MEMORY_CACHE_SIZE);
+    // empty string for the commits without a fingerprint
+    private final WeightedCache<String, String> cachedPatchIds = new WeightedCache<>("patchIds", RepoService::patchIdWeight, DEFAULT_MEMORY_CACHE_SIZE / PATCH_ID_CACHE_RATIO);
+    private final WeightedCache<String, History> cachedHistories = new WeightedCache<>("histories", History::weight, DEFAULT_MEMORY_CACHE_SIZE / HISTORY_CACHE_RATIO);
+    private volatile long historyTtl;
+    // the settings different from the defaults, by name
+    private final Map<String, Object> settings = new HashMap<>();
+
+    // a commit list kept in memory in the compact form, with the time it was fetched
+    private static final class History {
+        private final CompactHistory commits;
+        private final long fetchedAt;
+
+        private History(List<Commit> commits, long fetchedAt) {
+            this.commits = CompactHistory.of(commits);
+            this.fetchedAt = fetchedAt;
+        }
+
+        private boolean isExpired(long ttl) {
+            return fetchedAt + ttl < System.currentTimeMillis();
+        }
+
+        private long weight() {
+            return commits.weight();
+        }
+    }
 
     protected RepoService(RepositoryService repoService) {
         this.repositoryService = repoService;
+        this.scheduler = RequestScheduler.unlimited(getClass().getSimpleName());
+        this.scheduler.setMetrics(metrics);
+    }
+
+    // for the git services which are not backed by Aphrodite
+    protected RepoService() {
+        this(null);
+    }
+
+    /**
+     * Sets the persistent cache the commit patches and the commit lists are read through, the service closes it once
+     * it is replaced, or the service is destroyed.
+     *
+     * @param diskCache the persistent cache
+     * @param namespace the namespace of the git service in the cache, like the host name.
+     */
+    void setDiskCache(DiskCache diskCache, String namespace) {
+        DiskCache previous = this.diskCache;
+        this.diskCache = diskCache;
+        this.cacheNamespace = namespace;
+        // each service opens its own reference, the file is closed once no service uses it
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Sets how long the commit lists are kept in memory in milliseconds, <code>0</code> to not keep them.
+     */
+    void setHistoryCacheTtl(long ttlMillis) {
+        this.historyTtl = ttlMillis;
+        if (ttlMillis <= 0) {
+            cachedHistories.clear();
+        }
+    }
+
+    /**
+     * Lists the commits of the branch since the time, newest first, the history is kept in memory by the TTL of the
+     * commit lists, it is not changed by the callers.
+     */
+    CompactHistory getCommitsSince(URL repoURL, String branch, long since) {
+        long ttl = this.historyTtl;
+        if (ttl <= 0) {
+            return CompactHistory.of(readCommitsSince(repoURL, branch, since));
+        }
+        String key = historyKey(repoURL, branch, since);
+        // the lookup is counted once by get
+        cachedHistories.invalidateIf(key, history -> history.isExpired(ttl));
+        return cachedHistories.get(key, k -> new History(readCommitsSince(repoURL, branch, since), System.currentTimeMillis())).commits;
+    }
+
+    // the same day granularity as the disk cache, so the checks of the same day share the list
+    private static String historyKey(URL repoURL, String branch, long since) {
+        return repoURL + "@" + branch + "@" + TimeUnit.MILLISECONDS.toDays(since);
+    }
+
+    /**
+     * Lists the commits of the branch since the time page by page, newest first. Each page is fetched when it is
+     * asked for, so the caller can match the commits while listing them, and stop listing once it has what it needs.
+     * <p>
+     *     The commits are read from the caches if they are there, in one page, and they are put in the caches once
+     *     all pages are listed.
+     * </p>
+     */
+    Iterator<List<Commit>> pageCommitsSince(URL repoURL, String branch, long since) {
+        List<Commit> cached = cachedCommitsSince(repoURL, branch, since);
+        if (cached != null) {
+            return Collections.singletonList(cached).iterator();
+        }
+        Iterator<List<Commit>> pages = fetchPagesSince(repoURL, branch, since);
+        if (pages == null) {
+            return Collections.singletonList(getCommitsSince(repoURL, branch, since).commits()).iterator();
+        }
+        return new Iterator<List<Commit>>() {
+            // only kept when there is a cache for them
+            private List<Commit> listed = historyTtl > 0 || diskCache != null ? new ArrayList<>() : null;
+
+            @Override
+            public boolean hasNext() {
+                if (pages.hasNext()) {
+                    return true;
+                }
+                if (listed != null) {
+                    cacheCommitsSince(repoURL, branch, since, listed);
+                    listed = null;
+                }
+                return false;
+            }
+
+            @Override
+            public List<Commit> next() {
+                List<Commit> page = pages.next();
+                if (listed != null) {
+                    listed.addAll(page);
+                }
+                return page;
+            }
+        };
     }
 
-    List<Commit> getCommitsSince(URL repoURL, String branch, long since) {
-        return repositoryService.getCommitsSince(repoURL, branch, since);
+    private List<Commit> cachedCommitsSince(URL repoURL, String branch, long since) {
+        long ttl = this.historyTtl;
+        String key = historyKey(repoURL, branch, since);
+        if (ttl > 0) {
+            cachedHistories.invalidateIf(key, history -> history.isExpired(ttl));
+            History history = cachedHistories.getIfPresent(key);
+            if (history != null) {
+                return history.commits.commits();
+            }
+        }
+        DiskCache cache = this.diskCache;
+        List<Commit> commits = cache == null ? null : cache.getCommits(DiskCache.historyKey(cacheNamespace, repoURL.toString(), branch, since));
+        if (commits != null && ttl > 0) {
+            cachedHistories.put(key, new History(commits, System.currentTimeMillis()));
+        }
+        return commits;
     }
 
-    abstract CompareResult.Result commitSame(String repoIdOrName, String sha1, String sha2, double ratioThreshold);
+    private void cacheCommitsSince(URL repoURL, String branch, long since, List<Commit> commits) {
+        if (historyTtl > 0) {
+            cachedHistories.put(historyKey(repoURL, branch, since), new History(commits, System.currentTimeMillis()));
+        }
+        DiskCache cache = this.diskCache;
+        if (cache != null) {
+            cache.putCommits(DiskCache.historyKey(cacheNamespace, repoURL.toString(), branch, since), commits);
+        }
+    }
+
+    /**
+     * Fetches the commits of the branch since the time page by page, newest first.
+     *
+     * @return the pages, or <code>null</code> if the git service cannot list them in pages, in which case all
+     * commits are fetched at once by {@link #fetchCommitsSince(URL, String, long)}.
+     */
+    Iterator<List<Commit>> fetchPagesSince(URL repoURL, String branch, long since) {
+        return null;
+    }
+
+    /**
+     * The pages fetched one at a time through the scheduler when they are asked for.
+     *
+     * @param nextPage fetches the next page, or returns <code>null</code> after the last page
+     */
+    Iterator<List<Commit>> pages(String description, RequestScheduler.Request<List<Commit>, Exception> nextPage) {
+        return new Iterator<List<Commit>>() {
+            private List<Commit> page;
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                if (page == null && !done) {
+                    try {
+                        page = scheduler.execute("commits", description, nextPage);
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new RuntimeException("Failed when " + description, e);
+                    }
+                    done = page == null;
+                }
+                return page != null;
+            }
+
+            @Override
+            public List<Commit> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                List<Commit> next = page;
+                page = null;
+                return next;
+            }
+        };
+    }
+
+    private List<Commit> readCommitsSince(URL repoURL, String branch, long since) {
+        DiskCache cache = this.diskCache;
+        if (cache == null) {
+            return fetchCommitsSince(repoURL, branch, since);
+        }
+        String key = DiskCache.historyKey(cacheNamespace, repoURL.toString(), branch, since);
+        List<Commit> commits = cache.getCommits(key);
+        if (commits == null) {
+            commits = fetchCommitsSince(repoURL, branch, since);
+            cache.putCommits(key, commits);
+        }
+        return commits;
+    }
+
+    List<Commit> fetchCommitsSince(URL repoURL, String branch, long since) {
+        return scheduler.execute("commits", "listing commits of " + branch + " in " + repoURL,
+                () -> repositoryService.getCommitsSince(repoURL, branch, since));
+    }
+
+    /**
+     * Sets the scheduler the remote calls of the git service go through.
+     */
+    protected void setScheduler(RequestScheduler scheduler) {
+        scheduler.setMetrics(metrics);
+        this.scheduler = scheduler;
+    }
+
+    RequestScheduler scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Lists the commits which are reachable from <code>head</code>, but not from <code>base</code>, newest first.
+     *
+     * @return the commits, or <code>null</code> if the git service cannot list all of them in one comparison.
+     */
+    List<Commit> getCommitsBetween(String repoIdOrName, String base, String head) {
+        return null;
+    }
+
+    CompareResult.Result commitSame(String repoIdOrName, String sha1, String sha2, double ratioThreshold) {
+        return commitSame(repoIdOrName, sha1, getCommitFiles(repoIdOrName, sha1), sha2, getCommitFiles(repoIdOrName, sha2), ratioThreshold);
+    }
+
+    /**
+     * Compares the 2 commits on the patches which are fetched already.
+     */
+    CompareResult.Result commitSame(String repoIdOrName, String sha1, List<FilePatch> files1, String sha2, List<FilePatch> files2, double ratioThreshold) {
+        String patchId1 = getPatchId(repoIdOrName, sha1, files1);
+        if (patchId1 != null && patchId1.equals(getPatchId(repoIdOrName, sha2, files2))) {
+            return CompareResult.Result.SAME;
+        }
+        if (files1.size() != files2.size()) {
+            return CompareResult.Result.DIFFERENT;
+        }
+        // the files are paired by path, the order of them from the git service does not matter
+        Map<String, FilePatch> files2ByPath = new HashMap<>();
+        for (FilePatch f2 : files2) {
+            files2ByPath.put(f2.getPath(), f2);
+        }
+        List<FilePatch[]> changed = new ArrayList<>();
+        for (FilePatch f1 : files1) {
+            FilePatch f2 = files2ByPath.get(f1.getPath());
+            if (f2 == null) {
+                return CompareResult.Result.DIFFERENT;
+            }
+            if (!f1.getContentId().equals(f2.getContentId())) {
+                changed.add(new FilePatch[]{f1, f2});
+            }
+        }
+        if (changed.isEmpty()) {
+            return CompareResult.Result.SAME;
+        }
+        // the files of a big commit are compared in parallel
+        IntStream stream = IntStream.range(0, changed.size());
+        if (changed.size() > 1) {
+            stream = stream.parallel();
+        }
+        CompareResult.Result[] results = stream
+                .mapToObj(i -> filePatchSame(changed.get(i)[0].getPatch(), changed.get(i)[1].getPatch(), ratioThreshold))
+                .toArray(CompareResult.Result[]::new);
+        CompareResult.Result result = CompareResult.Result.SAME;
+        for (CompareResult.Result r : results) {
+            if (r == CompareResult.Result.DIFFERENT) {
+                return r;
+            }
+            if (r == CompareResult.Result.SUSPICIOUS) {
+                result = r;
+            }
+        }
+        return result;
+    }
+
+    static CompareResult.Result filePatchSame(String patch1, String patch2, double ratioThreshold) {
+        final String p1 = trimPatchLocation(patch1);
+        final String p2 = trimPatchLocation(patch2);
+        if (p1.equals(p2)) {
+            return CompareResult.Result.SAME;
+        }
+        // check if only small differences, like conflicts resolved, or different locations about the diff
+        if (PatchSimilarity.ratio(p1, p2, ratioThreshold) > ratioThreshold) {
+            return CompareResult.Result.SUSPICIOUS;
+        }
+        return CompareResult.Result.DIFFERENT;
+    }
+
+    /**
+     * Applies a setting of an instance using the service, like the cache directory. The service is shared by the
+     * instances of the same git service and user, so a setting different from the current one is refused when the
+     * other instances are using it, instead of changing it under them.
+     *
+     * @param name the name of the setting
+     * @param value the value of the setting, compared with the current one
+     * @param shared whether the other instances are using the service
+     * @param apply applies the setting to the service
+     * @throws IllegalStateException if it is shared and the setting is different
+     */
+    synchronized void configure(String name, Object value, boolean shared, Runnable apply) {
+        Object current = settings.containsKey(name) ? settings.get(name) : DEFAULT_SETTINGS.get(name);
+        if (Objects.equals(current, value)) {
+            return;
+        }
+        if (shared) {
+            throw new IllegalStateException("The " + name + " of the connection shared with the other instances is: "
+                    + current + ", it cannot be changed to: " + value);
+        }
+        apply.run();
+        settings.put(name, value);
+    }
+
+    /**
+     * Restores the default settings once no instance uses the service, the next instances do not inherit the settings.
+     */
+    synchronized void resetSettings() {
+        if (!settings.isEmpty()) {
+            setDiskCache(null, null);
+            setMemoryCacheSize(DEFAULT_MEMORY_CACHE_SIZE);
+            setHistoryCacheTtl(0L);
+            settings.clear();
+        }
+    }
+
+    /**
+     * Sets the max size of the patches kept in memory in bytes, the least recently used ones are evicted when it is over.
+     */
+    void setMemoryCacheSize(long maxBytes) {
+        cachedFiles.setMaxWeight(maxBytes);
+        cachedPatchIds.setMaxWeight(maxBytes / PATCH_ID_CACHE_RATIO);
+        cachedHistories.setMaxWeight(maxBytes / HISTORY_CACHE_RATIO);
+    }
+
+    CacheStats getCacheStats() {
+        return cachedFiles.stats();
+    }
+
+    /**
+     * @return the counters of the in-memory caches, by name
+     */
+    Map<String, CacheStats> getCachesStats() {
+        Map<String, CacheStats> caches = new LinkedHashMap<>();
+        caches.put("patches", cachedFiles.stats());
+        caches.put("patchIds", cachedPatchIds.stats());
+        caches.put("histories", cachedHistories.stats());
+        return caches;
+    }
+
+    Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers the metrics in JMX with the name, it is unregistered when it is destroyed.
+     */
+    void registerMetrics(String name) {
+        MetricsMXBean bean = new MetricsMXBean() {
+            @Override
+            public Map<String, TimerStats> getTimers() {
+                return metrics.snapshot();
+            }
+
+            @Override
+            public Map<String, CacheStats> getCaches() {
+                return getCachesStats();
+            }
+
+            @Override
+            public void reset() {
+                metrics.reset();
+            }
+        };
+        try {
+            ObjectName objectName = new ObjectName(METRICS_DOMAIN + ":type=RepoService,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, objectName);
+            metricsName = objectName;
+        } catch (JMException e) {
+            logger.log(Level.FINE, "Failed to register the metrics of " + name + " in JMX", e);
+        }
+    }
+
+    List<FilePatch> getCommitFiles(String repoIdOrName, String sha) {
+        return cachedFiles.get(repoIdOrName + "/" + sha, v -> {
+            DiskCache cache = this.diskCache;
+            if (cache == null) {
+                return fetchCommitFiles(repoIdOrName, sha);
+            }
+            String key = DiskCache.filesKey(cacheNamespace, repoIdOrName, sha);
+            List<FilePatch> files = cache.getFiles(key);
+            if (files == null) {
+                files = fetchCommitFiles(repoIdOrName, sha);
+                cache.putFiles(key, files);
+            }
+            return files;
+        });
+    }
+
+    /**
+     * @return the fingerprint of the commit, or <code>null</code> if it has no file changed.
+     */
+    String getPatchId(String repoIdOrName, String sha) {
+        String patchId = cachedPatchIds.get(repoIdOrName + "/" + sha, v -> {
+            String id = PatchId.of(getCommitFiles(repoIdOrName, sha));
+            return id == null ? "" : id;
+        });
+        return patchId.isEmpty() ? null : patchId;
+    }
+
+    private String getPatchId(String repoIdOrName, String sha, List<FilePatch> files) {
+        String patchId = cachedPatchIds.get(repoIdOrName + "/" + sha, v -> {
+            String id = PatchId.of(files);
+            return id == null ? "" : id;
+        });
+        return patchId.isEmpty() ? null : patchId;
+    }
+
+    /**
+     * Gets the fingerprints of the commits, the commits without a fingerprint are not in the result.
+     */
+    Map<String, String> getPatchIds(String repoIdOrName, List<String> shas) {
+        Map<String, String> patchIds = new HashMap<>();
+        for (String sha : shas) {
+            String patchId = getPatchId(repoIdOrName, sha);
+            if (patchId != null) {
+                patchIds.put(sha, patchId);
+            }
+        }
+        return patchIds;
+    }
+
+    /**
+     * Whether the fingerprints of the whole history can be got without remote calls, in which case all commits are
+     * fingerprinted before they are compared in pairs.
+     */
+    boolean isPatchIdCheap() {
+        return false;
+    }
+
+    void cachePatchId(String repoIdOrName, String sha, String patchId) {
+        cachedPatchIds.put(repoIdOrName + "/" + sha, patchId == null ? "" : patchId);
+    }
+
+    /**
+     * Fetches the changed files of the commit from the git service.
+     */
+    abstract List<FilePatch> fetchCommitFiles(String repoIdOrName, String sha);
 
     void destroy() {
-        this.repositoryService.destroy();
+        try {
+            if (this.repositoryService != null) {
+                this.repositoryService.destroy();
+            }
+        } finally {
+            unregisterMetrics();
+            setDiskCache(null, null);
+            this.cachedFiles.clear();
+            this.cachedPatchIds.clear();
+            this.cachedHistories.clear();
+        }
+    }
+
+    private void unregisterMetrics() {
+        ObjectName objectName = metricsName;
+        if (objectName != null) {
+            metricsName = null;
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.log(Level.FINE, "Failed to unregister the metrics: " + objectName, e);
+            }
+        }
+    }
+
+    private static long patchIdWeight(String patchId) {
+        // the key and the fingerprint
+        return 160 + 2L * patchId.length();
     }
 
-    static double similarness(String patch1, String patch2) {
-        return new JaroWinklerDistance().apply(patch1, patch2);
+    // of the commit messages, the patches are compared by PatchSimilarity
+    static double similarness(String message1, String message2) {
+        return JARO_WINKLER.apply(message1, message2);
     }
 
     static String commitMessageTrim(String message) {
@@ -0,0 +1,160 @@
+package io.github.gaol.git_rev_missing;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The RepoServices shared by the GitRevMissing instances of the same user and git service, so that they share the
+ * connection, the caches and the rate limit.
+ *
+ * Each instance acquires the service once and releases it once when it is closed. A service is destroyed when it has
+ * not been acquired for the idle timeout after the last release, so the instances created one after another, like by
+ * the callers embedding the library, get the connection which is initialized already. Its settings are restored to
+ * the defaults at the last release, so they are not inherited by the next instances.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class RepoServicePool {
+
+    private static final Logger logger = Logger.getLogger("g_r_m.pool");
+
+    private final long idleTimeoutMillis;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * @param idleTimeoutMillis how long a service is kept after it is released by all instances, 0 to destroy it at once
+     */
+    RepoServicePool(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Gets the service of the key, it is created by the factory if there is none. It must be released once it is not used.
+     */
+    RepoService acquire(String key, Function<String, RepoService> factory) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.computeIfAbsent(key, Entry::new);
+            entry.references++;
+            if (entry.eviction != null) {
+                entry.eviction.cancel(false);
+                entry.eviction = null;
+            }
+        }
+        try {
+            // created out of the lock of the pool, it takes a while to initialize the client of the git service
+            return entry.service(factory);
+        } catch (RuntimeException e) {
+            release(key);
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the service of the key acquired before.
+     */
+    void release(String key) {
+        Entry evicted = null;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null || entry.references == 0) {
+                throw new IllegalStateException("The service of " + key + " is not acquired");
+            }
+            if (--entry.references == 0) {
+                entry.resetSettings();
+                if (idleTimeoutMillis > 0) {
+                    entry.eviction = ExecutorUtils.timer().schedule(() -> evict(entry), idleTimeoutMillis, TimeUnit.MILLISECONDS);
+                } else {
+                    entries.remove(key);
+                    evicted = entry;
+                }
+            }
+        }
+        if (evicted != null) {
+            evicted.destroy();
+        }
+    }
+
+    /**
+     * @return how many instances use the service of the key
+     */
+    synchronized int references(String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? 0 : entry.references;
+    }
+
+    /**
+     * Destroys the services which are not used by any instance now, without waiting for the idle timeout.
+     */
+    void evictIdle() {
+        Map<String, Entry> idle = new HashMap<>();
+        synchronized (this) {
+            entries.forEach((key, entry) -> {
+                if (entry.references == 0) {
+                    idle.put(key, entry);
+                }
+            });
+            for (Map.Entry<String, Entry> e : idle.entrySet()) {
+                entries.remove(e.getKey());
+                if (e.getValue().eviction != null) {
+                    e.getValue().eviction.cancel(false);
+                }
+            }
+        }
+        idle.values().forEach(Entry::destroy);
+    }
+
+    private void evict(Entry entry) {
+        synchronized (this) {
+            // it may be acquired again after the eviction was scheduled
+            if (entry.references > 0 || entries.get(entry.key) != entry) {
+                return;
+            }
+            entries.remove(entry.key);
+        }
+        logger.fine("The service of " + entry.key + " is not used for " + idleTimeoutMillis + " ms, destroy it");
+        entry.destroy();
+    }
+
+    private static final class Entry {
+        private final String key;
+        // guarded by the pool
+        private int references;
+        private ScheduledFuture<?> eviction;
+        private RepoService service;
+
+        private Entry(String key) {
+            this.key = key;
+        }
+
+        private synchronized RepoService service(Function<String, RepoService> factory) {
+            if (service == null) {
+                service = factory.apply(key);
+            }
+            return service;
+        }
+
+        private synchronized void resetSettings() {
+            if (service != null) {
+                service.resetSettings();
+            }
+        }
+
+        private synchronized void destroy() {
+            if (service != null) {
+                try {
+                    service.destroy();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Failed to destroy the service of " + key, e);
+                }
+                service = null;
+            }
+        }
+    }
+
+}
@@ -4,7 +4,9 @@ import org.jboss.set.aphrodite.config.RepositoryConfig;
 import org.jboss.set.aphrodite.repository.services.common.RepositoryUtils;
 import org.jboss.set.aphrodite.repository.services.gitlab.GitLabUtils;
 
+import java.io.File;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.List;
 
@@ -19,6 +21,26 @@ final class RepoUtils {
         return null;
     }
 
+    static boolean isLocal(URL url) {
+        return "file".equalsIgnoreCase(url.getProtocol());
+    }
+
+    // the repository can be specified as a path of the local clone as well
+    static URL repoURL(String repo) throws MalformedURLException {
+        if (repo.contains("://") || repo.startsWith("file:")) {
+            return new URL(repo);
+        }
+        return new File(repo).getAbsoluteFile().toURI().toURL();
+    }
+
+    static File localFile(URL url) {
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return new File(url.getPath());
+        }
+    }
+
     static String projectId(URL gitRepoURL) {
         return GitLabUtils.getProjectIdFromURL(gitRepoURL);
     }
@@ -51,6 +73,9 @@ final class RepoUtils {
 
     static String gitCommitLink(String repoURL, String sha) {
         try {
+            if (repoURL.startsWith("file:")) {
+                return repoURL + "#" + sha;
+            }
             URL repo = canonicRepoURL(repoURL);
             if (repo != null) {
                 return repo.toString() + "/commit/" + sha;
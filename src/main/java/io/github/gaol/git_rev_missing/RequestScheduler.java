@@ -0,0 +1,195 @@
+package io.github.gaol.git_rev_missing;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules the requests to a git service under its rate limit, all remote calls of a RepoService go through it.
+ *
+ * <ul>
+ *     <li>The remaining quota is updated after each request, when it is low, the requests are spread until the quota
+ *     is reset, and they wait for the reset when only the reserve is left.</li>
+ *     <li>When a request is rate limited anyway, like by the secondary rate limit of GitHub, it is retried with an
+ *     exponential back off, and the requests are throttled by a token bucket whose rate is halved on each rate limited
+ *     request, and increased slowly on each succeeded one.</li>
+ * </ul>
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class RequestScheduler {
+
+    private static final Logger logger = Logger.getLogger("g_r_m.scheduler");
+
+    static final int MAX_RETRIES = 8;
+    private static final long INITIAL_BACKOFF = TimeUnit.SECONDS.toMillis(2);
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(2);
+    // below this ratio of the quota, the requests are spread until the quota is reset
+    private static final double LOW_QUOTA_RATIO = 0.1d;
+    // requests per second when it is rate limited the first time
+    private static final double INITIAL_THROTTLED_RATE = 10d;
+    private static final double MIN_RATE = 0.5d;
+    private static final double RATE_STEP = 0.1d;
+    // not throttled any more above this rate
+    private static final double MAX_THROTTLED_RATE = 50d;
+
+    /**
+     * A remote call to the git service.
+     */
+    @FunctionalInterface
+    interface Request<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    /**
+     * Tells whether a failed request was rate limited.
+     */
+    @FunctionalInterface
+    interface RetryPolicy {
+        /**
+         * @return how long to wait in milliseconds before the retry, <code>0</code> to use the exponential back off,
+         * or a negative value if the failure is not because of the rate limit.
+         */
+        long retryAfter(Throwable failure);
+    }
+
+    private final String name;
+    private final RetryPolicy retryPolicy;
+    private final Consumer<RequestScheduler> quotaUpdater;
+
+    private volatile Metrics metrics = new Metrics();
+    private int remaining = -1;
+    private int limit = -1;
+    private long resetAt;
+    private double rate = Double.POSITIVE_INFINITY;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param name the name of the git service in the logs
+     * @param retryPolicy tells which failures are retried
+     * @param quotaUpdater called after each request to update the remaining quota by {@link #updateQuota(int, int, long)}
+     */
+    RequestScheduler(String name, RetryPolicy retryPolicy, Consumer<RequestScheduler> quotaUpdater) {
+        this.name = name;
+        this.retryPolicy = retryPolicy;
+        this.quotaUpdater = quotaUpdater;
+    }
+
+    // the requests are run directly
+    static RequestScheduler unlimited(String name) {
+        return new RequestScheduler(name, failure -> -1L, scheduler -> {});
+    }
+
+    /**
+     * Sets the metrics where the calls and the waits are timed.
+     */
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Runs the request when the quota allows, and retries it when it is rate limited.
+     *
+     * @param endpoint the endpoint of the git service in the metrics, like <code>commit</code>
+     * @param description what the request does in the logs
+     */
+    <T, E extends Exception> T execute(String endpoint, String description, Request<T, E> request) throws E {
+        for (int attempt = 0; ; attempt++) {
+            sleep(reserve(), description);
+            try {
+                T result = metrics.time(Metrics.API + endpoint, request);
+                succeeded();
+                return result;
+            } catch (Exception e) {
+                long retryAfter = retryPolicy.retryAfter(e);
+                if (retryAfter < 0 || attempt >= MAX_RETRIES) {
+                    throw e;
+                }
+                long delay = retryAfter > 0 ? retryAfter : Math.min(MAX_BACKOFF, INITIAL_BACKOFF << attempt);
+                throttled();
+                logger.log(Level.WARNING, "Rate limited by " + name + " when " + description + ", retry in " + delay / 1000 + " seconds");
+                sleep(delay, description);
+            } finally {
+                quotaUpdater.accept(this);
+            }
+        }
+    }
+
+    /**
+     * Updates the quota from the last response of the git service.
+     *
+     * @param remaining the remaining requests in the current window
+     * @param limit the max requests in a window
+     * @param resetAt when the quota is reset, in milliseconds
+     */
+    synchronized void updateQuota(int remaining, int limit, long resetAt) {
+        this.remaining = remaining;
+        this.limit = limit;
+        this.resetAt = resetAt;
+    }
+
+    // how long to wait in milliseconds before sending the next request
+    synchronized long reserve() {
+        long now = System.currentTimeMillis();
+        if (remaining >= 0 && now >= resetAt) {
+            // unknown until the next response
+            remaining = -1;
+        }
+        double currentRate = rate;
+        if (remaining >= 0) {
+            // a few requests are left for the other clients of the same user
+            int reserve = Math.max(1, limit / 100);
+            if (remaining <= reserve) {
+                logger.log(Level.WARNING, "The quota of " + name + " is used up, wait " + (resetAt - now) / 1000 + " seconds until it is reset");
+                return resetAt - now + 1000;
+            }
+            if (remaining < limit * LOW_QUOTA_RATIO) {
+                double secondsToReset = Math.max(1d, (resetAt - now) / 1000d);
+                currentRate = Math.min(currentRate, (remaining - reserve) / secondsToReset);
+            }
+            // it is corrected by the response
+            remaining--;
+        }
+        if (Double.isInfinite(currentRate)) {
+            return 0;
+        }
+        long nanos = System.nanoTime();
+        tokens = Math.min(Math.max(1d, currentRate), tokens + (nanos - lastRefill) / 1e9d * currentRate);
+        lastRefill = nanos;
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / currentRate * 1000);
+    }
+
+    private synchronized void throttled() {
+        rate = Double.isInfinite(rate) ? INITIAL_THROTTLED_RATE : Math.max(MIN_RATE, rate / 2);
+        tokens = Math.min(tokens, 0);
+    }
+
+    private synchronized void succeeded() {
+        if (!Double.isInfinite(rate)) {
+            rate += RATE_STEP;
+            if (rate > MAX_THROTTLED_RATE) {
+                rate = Double.POSITIVE_INFINITY;
+            }
+        }
+    }
+
+    private void sleep(long millis, String description) {
+        if (millis <= 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted when waiting to send request: " + description);
+        } finally {
+            metrics.record(Metrics.RATE_LIMIT_WAIT, System.nanoTime() - start);
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+package io.github.gaol.git_rev_missing;
+
+import org.jboss.set.aphrodite.domain.Commit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An index over the commits of one revision, it is built once per comparison so that each commit of the other
+ * revision can be looked up by SHA1 or by message without scanning the whole list.
+ *
+ * The lookups return commits in the same order as they appear in the indexed list. The positions of the commits of
+ * the same message are linked in primitive arrays by the message ids of the {@link CompactHistory}, and the commit
+ * objects are only created for the returned ones.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class RevisionIndex {
+
+    private final CompactHistory commits;
+    private final CompactHistory.MessagePool pool;
+    // by message id, the first position of the commits with the message, or with it as the trimmed message
+    private final int[] firstByMessage;
+    private final int[] firstByTrimmedMessage;
+    // by position, the next position of the commits with the same message, or the same trimmed message
+    private final int[] nextByMessage;
+    private final int[] nextByTrimmedMessage;
+    private final Metrics metrics;
+    private SimilarMessageIndex similarMessageIndex;
+    // the message ids in the similar message index
+    private int[] similarMessageIds;
+    private Set<String> patchIds = Collections.emptySet();
+
+    RevisionIndex(List<Commit> commits) {
+        this(CompactHistory.of(commits), null);
+    }
+
+    /**
+     * @param metrics where the similarities of the messages are timed, or <code>null</code>
+     */
+    RevisionIndex(CompactHistory commits, Metrics metrics) {
+        this.commits = commits;
+        this.pool = commits.messages();
+        this.metrics = metrics;
+        int messages = pool.size();
+        this.firstByMessage = new int[messages];
+        this.firstByTrimmedMessage = new int[messages];
+        Arrays.fill(firstByMessage, -1);
+        Arrays.fill(firstByTrimmedMessage, -1);
+        this.nextByMessage = new int[commits.size()];
+        this.nextByTrimmedMessage = new int[commits.size()];
+        // linked backwards, so that they are visited in the order of the history
+        for (int i = commits.size() - 1; i >= 0; i--) {
+            int messageId = commits.messageId(i);
+            nextByMessage[i] = firstByMessage[messageId];
+            firstByMessage[messageId] = i;
+            int trimmedId = pool.trimmedId(messageId);
+            nextByTrimmedMessage[i] = firstByTrimmedMessage[trimmedId];
+            firstByTrimmedMessage[trimmedId] = i;
+        }
+    }
+
+    boolean containsSha(String sha) {
+        return commits.containsSha(sha);
+    }
+
+    /**
+     * Sets the fingerprints of the indexed commits, when they are known before the commits are compared in pairs.
+     */
+    void setPatchIds(Collection<String> patchIds) {
+        this.patchIds = new HashSet<>(patchIds);
+    }
+
+    boolean containsPatchId(String patchId) {
+        return patchId != null && patchIds.contains(patchId);
+    }
+
+    /**
+     * @return commits which have exactly the same message
+     */
+    List<Commit> sameMessage(String message) {
+        int messageId = pool.idIfPresent(message);
+        if (messageId < 0 || messageId >= firstByMessage.length) {
+            return Collections.emptyList();
+        }
+        List<Commit> result = new ArrayList<>(1);
+        for (int i = firstByMessage[messageId]; i >= 0; i = nextByMessage[i]) {
+            result.add(commits.commit(i));
+        }
+        return result;
+    }
+
+    /**
+     * @return commits which have a different message, but the same one after the issue keys are trimmed,
+     * or the similarity of the messages is above the threshold.
+     */
+    List<Commit> similarMessage(String message, double messageRatioThreshold) {
+        BitSet similar = new BitSet(commits.size());
+        int trimmedId = trimmedId(message);
+        if (trimmedId >= 0 && trimmedId < firstByTrimmedMessage.length) {
+            for (int i = firstByTrimmedMessage[trimmedId]; i >= 0; i = nextByTrimmedMessage[i]) {
+                similar.set(i);
+            }
+        }
+        long start = System.nanoTime();
+        int scored = 0;
+        SimilarMessageIndex index = similarMessageIndex();
+        // each message is scored once, whatever how many commits have it
+        for (int c : index.candidates(message, messageRatioThreshold)) {
+            int messageId = similarMessageIds[c];
+            String candidate = pool.message(messageId);
+            if (pool.trimmedId(messageId) != trimmedId && !candidate.equals(message)) {
+                scored++;
+                if (RepoService.similarness(candidate, message) > messageRatioThreshold) {
+                    for (int i = firstByMessage[messageId]; i >= 0; i = nextByMessage[i]) {
+                        similar.set(i);
+                    }
+                }
+            }
+        }
+        if (metrics != null) {
+            metrics.record(Metrics.MESSAGE_COMPARISONS, scored, System.nanoTime() - start);
+        }
+        List<Commit> result = new ArrayList<>(similar.cardinality());
+        for (int i = similar.nextSetBit(0); i >= 0; i = similar.nextSetBit(i + 1)) {
+            if (!commits.message(i).equals(message)) {
+                result.add(commits.commit(i));
+            }
+        }
+        return result;
+    }
+
+    // the id of the trimmed message, or -1 if no message is trimmed to it
+    private int trimmedId(String message) {
+        int messageId = pool.idIfPresent(message);
+        return messageId >= 0 ? pool.trimmedId(messageId) : pool.trimmedIdIfPresent(RepoService.commitMessageTrim(message));
+    }
+
+    // built on first use, it is not needed when all commits are found by SHA1 or by the same message
+    private synchronized SimilarMessageIndex similarMessageIndex() {
+        if (similarMessageIndex == null) {
+            List<String> messages = new ArrayList<>();
+            int[] messageIds = new int[firstByMessage.length];
+            for (int messageId = 0; messageId < firstByMessage.length; messageId++) {
+                if (firstByMessage[messageId] >= 0) {
+                    messageIds[messages.size()] = messageId;
+                    messages.add(pool.message(messageId));
+                }
+            }
+            similarMessageIds = Arrays.copyOf(messageIds, messages.size());
+            similarMessageIndex = new SimilarMessageIndex(messages);
+        }
+        return similarMessageIndex;
+    }
+
+}
@@ -0,0 +1,102 @@
+package io.github.gaol.git_rev_missing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A pair of revisions to find the commits in <code>revA</code>, but missing in <code>revB</code>.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+public final class RevisionPair {
+
+    private final String revA;
+    private final String revB;
+
+    private RevisionPair(String revA, String revB) {
+        this.revA = Objects.requireNonNull(revA, "revA must be provided");
+        this.revB = Objects.requireNonNull(revB, "revB must be provided");
+    }
+
+    /**
+     * @param revA revision A from which the commits are listed.
+     * @param revB revision B to which the commits may be missing.
+     * @return the pair of the revisions
+     */
+    public static RevisionPair of(String revA, String revB) {
+        return new RevisionPair(revA, revB);
+    }
+
+    /**
+     * Parses the pair in format of <code>revA..revB</code>.
+     *
+     * @param pair the pair like <code>7.4.0..7.4.1</code>
+     * @return the pair of the revisions
+     */
+    public static RevisionPair parse(String pair) {
+        int index = pair.indexOf("..");
+        if (index <= 0 || index + 2 >= pair.length()) {
+            throw new IllegalArgumentException("Not a revision pair like revA..revB: " + pair);
+        }
+        return new RevisionPair(pair.substring(0, index), pair.substring(index + 2));
+    }
+
+    /**
+     * The pairs of each revision and the next one in an upgrade chain, like <code>7.4.0..7.4.1</code>, <code>7.4.1..8.0.0</code>.
+     *
+     * @param revisions the revisions from the lowest to the highest
+     * @return the pairs in the chain
+     */
+    public static List<RevisionPair> chain(List<String> revisions) {
+        List<RevisionPair> pairs = new ArrayList<>();
+        for (int i = 0; i + 1 < revisions.size(); i++) {
+            pairs.add(new RevisionPair(revisions.get(i), revisions.get(i + 1)));
+        }
+        return pairs;
+    }
+
+    /**
+     * The pairs of each revision in <code>revAs</code> with each revision in <code>revBs</code>, like a fix branch
+     * against the maintenance branches.
+     *
+     * @param revAs the revisions from which the commits are listed
+     * @param revBs the revisions to which the commits may be missing
+     * @return the pairs in the matrix
+     */
+    public static List<RevisionPair> matrix(List<String> revAs, List<String> revBs) {
+        List<RevisionPair> pairs = new ArrayList<>();
+        for (String revA : revAs) {
+            for (String revB : revBs) {
+                pairs.add(new RevisionPair(revA, revB));
+            }
+        }
+        return pairs;
+    }
+
+    public String getRevA() {
+        return revA;
+    }
+
+    public String getRevB() {
+        return revB;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RevisionPair that = (RevisionPair) o;
+        return revA.equals(that.revA) && revB.equals(that.revB);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(revA, revB);
+    }
+
+    @Override
+    public String toString() {
+        return revA + ".." + revB;
+    }
+}
@@ -0,0 +1,251 @@
+package io.github.gaol.git_rev_missing;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A long-running HTTP server which checks the missing commits on requests, so the connections to the git services
+ * and the caches stay warm between the checks.
+ *
+ * <pre>
+ * GET /missing-commits?repo=https://github.com/owner/repo&amp;a=revA&amp;b=revB[&amp;month=12]
+ * </pre>
+ *
+ * It responds the {@link MissingCommit} in JSON, or <code>{"error": "..."}</code> with status 400 for a bad request
+ * and 500 for a failed check. The identical requests which come while one is being checked wait for the same result
+ * instead of checking it again.
+ *
+ * Only the remote repositories under the allowed URLs are checked, the revisions and the month are validated before
+ * they reach the git services, so the clients cannot make it run on the local clones, nor pass the options to git.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class Server {
+
+    private static final Logger logger = Logger.getLogger("g_r_m.server");
+
+    static final String MISSING_COMMITS_PATH = "/missing-commits";
+    static final int MAX_MONTH = 120;
+    private static final int MAX_REVISION_LENGTH = 255;
+
+    /**
+     * Checks the missing commits of a repository.
+     */
+    @FunctionalInterface
+    interface Checker {
+        MissingCommit missingCommits(String repo, String revA, String revB, int month) throws Exception;
+    }
+
+    private final Checker checker;
+    private final int defaultMonth;
+    private final List<String> allowedRepositories;
+    private final ObjectMapper mapper = new ObjectMapper().disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+    // the checks being run, by the request
+    private final Map<String, CompletableFuture<MissingCommit>> running = new ConcurrentHashMap<>();
+    private HttpServer httpServer;
+    private ExecutorService executor;
+
+    /**
+     * @param allowedRepositories the URLs of the repositories, or of the git services or the owners of them, which can be checked
+     */
+    Server(Checker checker, int defaultMonth, List<String> allowedRepositories) {
+        this.checker = checker;
+        this.defaultMonth = defaultMonth;
+        this.allowedRepositories = new ArrayList<>(allowedRepositories);
+    }
+
+    /**
+     * Starts to listen on the address, the requests are handled by <code>threads</code> threads.
+     */
+    synchronized Server start(InetSocketAddress address, int threads) throws IOException {
+        httpServer = HttpServer.create(address, 0);
+        final AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "g_r_m-server-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(executor);
+        httpServer.createContext(MISSING_COMMITS_PATH, this::handle);
+        httpServer.start();
+        logger.info("Listening on http://" + address.getHostString() + ":" + getPort() + MISSING_COMMITS_PATH);
+        return this;
+    }
+
+    synchronized int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    synchronized void stop() {
+        if (httpServer != null) {
+            httpServer.stop(1);
+            executor.shutdownNow();
+            httpServer = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, error("Only GET is supported"));
+                return;
+            }
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String repo = query.get("repo");
+            String revA = query.get("a");
+            String revB = query.get("b");
+            if (repo == null || revA == null || revB == null) {
+                respond(exchange, 400, error("Missing required parameters: 'repo', 'a', 'b'"));
+                return;
+            }
+            int month;
+            try {
+                month = query.containsKey("month") ? Integer.parseInt(query.get("month")) : defaultMonth;
+            } catch (NumberFormatException e) {
+                month = -1;
+            }
+            if (month <= 0 || month > MAX_MONTH) {
+                respond(exchange, 400, error("Not a valid month: " + query.get("month") + ", it must be from 1 to " + MAX_MONTH));
+                return;
+            }
+            if (!isValidRevision(revA) || !isValidRevision(revB)) {
+                respond(exchange, 400, error("Not a valid revision: " + (isValidRevision(revA) ? revB : revA)));
+                return;
+            }
+            if (!isAllowed(repo, allowedRepositories)) {
+                respond(exchange, 400, error("Not an allowed repository: " + repo));
+                return;
+            }
+            try {
+                respond(exchange, 200, missingCommits(repo, revA, revB, month));
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, error(String.valueOf(e.getMessage())));
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Failed to check " + revA + ".." + revB + " of " + repo, e);
+                respond(exchange, 500, error(String.valueOf(e.getMessage())));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // the identical requests share the same check
+    MissingCommit missingCommits(String repo, String revA, String revB, int month) {
+        String key = repo + "\0" + revA + "\0" + revB + "\0" + month;
+        CompletableFuture<MissingCommit> future = new CompletableFuture<>();
+        CompletableFuture<MissingCommit> inFlight = running.putIfAbsent(key, future);
+        if (inFlight != null) {
+            logger.fine("Waiting for the same check of " + revA + ".." + revB + " of " + repo);
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                throw ExecutorUtils.propagate(e.getCause());
+            }
+        }
+        try {
+            MissingCommit missingCommit = checker.missingCommits(repo, revA, revB, month);
+            future.complete(missingCommit);
+            return missingCommit;
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            throw ExecutorUtils.propagate(e);
+        } finally {
+            running.remove(key, future);
+        }
+    }
+
+    // a tag, a branch or a SHA1, the ones starting with '-' would be taken as the options of git
+    static boolean isValidRevision(String revision) {
+        if (revision.isEmpty() || revision.length() > MAX_REVISION_LENGTH || revision.startsWith("-") || revision.contains("..")) {
+            return false;
+        }
+        for (int i = 0; i < revision.length(); i++) {
+            char c = revision.charAt(i);
+            if (Character.isWhitespace(c) || Character.isISOControl(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if the repository is a remote one under one of the allowed URLs
+     */
+    static boolean isAllowed(String repo, List<String> allowedRepositories) {
+        URL url;
+        try {
+            url = new URL(repo);
+        } catch (MalformedURLException e) {
+            return false;
+        }
+        if (!"https".equalsIgnoreCase(url.getProtocol()) && !"http".equalsIgnoreCase(url.getProtocol())) {
+            return false;
+        }
+        String path = url.getPath();
+        if (url.getUserInfo() != null || url.getQuery() != null || url.getRef() != null || path.contains("/../") || path.endsWith("/..")) {
+            return false;
+        }
+        for (String allowed : allowedRepositories) {
+            // on the boundary of the path, so that 'https://github.com/owner' does not allow 'https://github.com/owner-x'
+            if (repo.equals(allowed) || (repo.startsWith(allowed) && (allowed.endsWith("/") || repo.charAt(allowed.length()) == '/'))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void respond(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] json = mapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, json.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(json);
+        }
+    }
+
+    private static Map<String, String> error(String message) {
+        return Collections.singletonMap("error", message);
+    }
+
+    static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        try {
+            for (String param : rawQuery.split("&")) {
+                int index = param.indexOf('=');
+                if (index > 0) {
+                    query.put(URLDecoder.decode(param.substring(0, index), "UTF-8"), URLDecoder.decode(param.substring(index + 1), "UTF-8"));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 is not supported", e);
+        }
+        return query;
+    }
+
+}
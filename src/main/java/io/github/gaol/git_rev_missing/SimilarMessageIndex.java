@@ -0,0 +1,137 @@
+package io.github.gaol.git_rev_missing;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An index over commit messages which yields the candidates that may be similar to a given message.
+ *
+ * The messages are sorted by length, and a character histogram is kept for each of them. For a given message,
+ * only the messages whose length can still reach the threshold are visited, and only those whose Jaro-Winkler
+ * upper bound computed from the common characters is above the threshold are returned as candidates.
+ * Both bounds never under estimate the real similarity, so the exact scoring of the candidates returns the
+ * same result as scoring every message.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class SimilarMessageIndex {
+
+    private static final int BUCKETS = 64;
+    // tolerance for the floating point error of the bounds, it only makes the candidates list a bit longer
+    private static final double EPSILON = 1e-9d;
+
+    private final String[] messages;
+    private final int[] positions;
+    private final int[] lengths;
+    private final int[] histograms;
+
+    /**
+     * @param messages the messages to index, the returned candidates are the positions in this list
+     */
+    SimilarMessageIndex(List<String> messages) {
+        Integer[] order = new Integer[messages.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> messages.get(i).length()));
+        this.messages = new String[order.length];
+        this.positions = new int[order.length];
+        this.lengths = new int[order.length];
+        this.histograms = new int[order.length * BUCKETS];
+        for (int i = 0; i < order.length; i++) {
+            String message = messages.get(order[i]);
+            this.messages[i] = message;
+            this.positions[i] = order[i];
+            this.lengths[i] = message.length();
+            histogram(message, histograms, i * BUCKETS);
+        }
+    }
+
+    /**
+     * Returns positions of the messages whose similarity to the specified message may be above the threshold.
+     *
+     * @param message the message to search
+     * @param messageRatioThreshold the threshold of the similarity
+     * @return the candidate positions in ascending order
+     */
+    int[] candidates(String message, double messageRatioThreshold) {
+        final int length = message.length();
+        final double threshold = messageRatioThreshold - EPSILON;
+        int from = firstIndex(i -> lengths[i] >= length || lengthBound(length, lengths[i]) > threshold);
+        int to = firstIndex(i -> lengths[i] > length && lengthBound(length, lengths[i]) <= threshold);
+        int[] histogram = new int[BUCKETS];
+        histogram(message, histogram, 0);
+        int[] result = new int[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            int common = 0;
+            for (int b = 0, offset = i * BUCKETS; b < BUCKETS; b++) {
+                common += Math.min(histogram[b], histograms[offset + b]);
+            }
+            if (upperBound(common, length, lengths[i], commonPrefix(message, messages[i])) > threshold) {
+                result[count++] = positions[i];
+            }
+        }
+        result = Arrays.copyOf(result, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private interface IndexPredicate {
+        boolean test(int index);
+    }
+
+    // the predicate must be false for a prefix of the sorted messages, and true for the rest
+    private int firstIndex(IndexPredicate predicate) {
+        int low = 0;
+        int high = lengths.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (predicate.test(mid)) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    // the best similarity two messages with the lengths can have, it grows with the shorter length and drops with the longer one
+    private static double lengthBound(int length1, int length2) {
+        int shorter = Math.min(length1, length2);
+        return upperBound(shorter, length1, length2, shorter);
+    }
+
+    /**
+     * The upper bound of <code>JaroWinklerDistance</code> when at most <code>common</code> characters match, the
+     * prefix boost is the one of commons-text 1.8, <code>0.1</code> for each of the first 4 common characters.
+     */
+    static double upperBound(int common, int length1, int length2, int prefix) {
+        if (common == 0) {
+            return 0d;
+        }
+        double jaro = ((double) common / length1 + (double) common / length2 + 1d) / 3d;
+        if (jaro < 0.7d) {
+            return jaro;
+        }
+        double scaling = 0.1d * Math.min(4, prefix);
+        return jaro + scaling * (1d - jaro);
+    }
+
+    private static int commonPrefix(String s1, String s2) {
+        int max = Math.min(s1.length(), s2.length());
+        int i = 0;
+        while (i < max && s1.charAt(i) == s2.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static void histogram(String message, int[] histogram, int offset) {
+        for (int i = 0; i < message.length(); i++) {
+            histogram[offset + (message.charAt(i) & (BUCKETS - 1))]++;
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package io.github.gaol.git_rev_missing;
+
+/**
+ * A snapshot of a timer, like the calls to an endpoint of the git service.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+public final class TimerStats {
+
+    private final long count;
+    private final long totalNanos;
+
+    TimerStats(long count, long totalNanos) {
+        this.count = count;
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * @return how many times it is timed
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the total time in milliseconds
+     */
+    public double getTotalMillis() {
+        return totalNanos / 1_000_000d;
+    }
+
+    /**
+     * @return the average time in milliseconds, <code>0</code> if it is not timed yet
+     */
+    public double getMeanMillis() {
+        return count == 0 ? 0d : totalNanos / 1_000_000d / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count: %d, total: %.3f ms, mean: %.3f ms", count, getTotalMillis(), getMeanMillis());
+    }
+
+}
@@ -0,0 +1,227 @@
+package io.github.gaol.git_rev_missing;
+
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * An in-memory cache bounded by the total weight of the values, like the size of the patches in bytes.
+ *
+ * The least recently used values are evicted when the total weight is over the max weight. A value heavier than the
+ * max weight is not cached at all. The same key is loaded only once when it is requested by several threads. When the
+ * thread loading it is interrupted, like when its check is cancelled, the others waiting for it load it again instead
+ * of failing with it, since they may work for other checks.
+ *
+ * The lookups and the evictions are counted once each, in the cache and in the metrics of the check the thread works
+ * for when the cache has a name, see {@link Metrics#countCache(String, long, long, long, long)}.
+ *
+ * @author <a href="mailto:aoingl@gmail.com">Lin Gao</a>
+ */
+final class WeightedCache<K, V> {
+
+    private static final class Node<V> {
+        private final V value;
+        private final long weight;
+
+        private Node(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final String name;
+    private final ToLongFunction<V> weigher;
+    // access ordered, the eldest is the least recently used
+    private final LinkedHashMap<K, Node<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong evictedWeight = new AtomicLong();
+    private long maxWeight;
+    private long weight;
+
+    WeightedCache(ToLongFunction<V> weigher, long maxWeight) {
+        this(null, weigher, maxWeight);
+    }
+
+    /**
+     * @param name the name of the cache in the stats of the checks, like <code>patches</code>
+     */
+    WeightedCache(String name, ToLongFunction<V> weigher, long maxWeight) {
+        this.name = name;
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Gets the value of the key, it is loaded by the loader if it is not in the cache.
+     */
+    V get(K key, Function<K, V> loader) {
+        while (true) {
+            V value = getIfPresent(key);
+            if (value != null) {
+                return value;
+            }
+            CompletableFuture<V> future = new CompletableFuture<>();
+            CompletableFuture<V> inFlight = loading.putIfAbsent(key, future);
+            if (inFlight == null) {
+                return load(key, loader, future);
+            }
+            // loaded by another thread
+            try {
+                value = inFlight.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof AbandonedLoad) {
+                    continue;
+                }
+                throw ExecutorUtils.propagate(e.getCause());
+            }
+            hit();
+            return value;
+        }
+    }
+
+    private V load(K key, Function<K, V> loader, CompletableFuture<V> future) {
+        V value;
+        try {
+            value = peek(key);
+            if (value == null) {
+                misses.incrementAndGet();
+                if (name != null) {
+                    Metrics.countCache(name, 0, 1, 0, 0);
+                }
+                value = loader.apply(key);
+                put(key, value);
+            } else {
+                hit();
+            }
+            future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            // the waiters try again if it is interrupted, the failure is for this thread only, it is not loading anymore then
+            loading.remove(key, future);
+            future.completeExceptionally(isInterruption(e) ? new AbandonedLoad() : e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    private static boolean isInterruption(Throwable failure) {
+        if (Thread.currentThread().isInterrupted()) {
+            return true;
+        }
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedException || cause instanceof InterruptedIOException
+                    || cause instanceof CancellationException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // tells the waiters that the thread loading the value was interrupted
+    private static final class AbandonedLoad extends RuntimeException {
+        private AbandonedLoad() {
+            super(null, null, false, false);
+        }
+    }
+
+    V getIfPresent(K key) {
+        Node<V> node;
+        synchronized (this) {
+            node = entries.get(key);
+        }
+        if (node == null) {
+            return null;
+        }
+        hit();
+        return node.value;
+    }
+
+    private void hit() {
+        hits.incrementAndGet();
+        if (name != null) {
+            Metrics.countCache(name, 1, 0, 0, 0);
+        }
+    }
+
+    // no access recorded
+    private synchronized V peek(K key) {
+        Node<V> node = entries.get(key);
+        return node == null ? null : node.value;
+    }
+
+    synchronized void put(K key, V value) {
+        if (value == null) {
+            return;
+        }
+        Node<V> node = new Node<>(value, weigher.applyAsLong(value));
+        Node<V> old = entries.remove(key);
+        if (old != null) {
+            weight -= old.weight;
+        }
+        if (node.weight > maxWeight) {
+            return;
+        }
+        entries.put(key, node);
+        weight += node.weight;
+        evict();
+    }
+
+    synchronized void invalidate(K key) {
+        Node<V> old = entries.remove(key);
+        if (old != null) {
+            weight -= old.weight;
+        }
+    }
+
+    /**
+     * Removes the value of the key if the predicate accepts it, like when it is expired, it is not counted as a lookup.
+     */
+    synchronized void invalidateIf(K key, Predicate<V> predicate) {
+        Node<V> node = entries.get(key);
+        if (node != null && predicate.test(node.value)) {
+            invalidate(key);
+        }
+    }
+
+    synchronized void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        evict();
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    private void evict() {
+        Iterator<Node<V>> it = entries.values().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            Node<V> eldest = it.next();
+            it.remove();
+            weight -= eldest.weight;
+            evictions.incrementAndGet();
+            evictedWeight.addAndGet(eldest.weight);
+            if (name != null) {
+                Metrics.countCache(name, 0, 0, 1, eldest.weight);
+            }
+        }
+    }
+
+    synchronized CacheStats stats() {
+        return new CacheStats(hits.get(), misses.get(), evictions.get(), evictedWeight.get(), entries.size(), weight, maxWeight);
+    }
+
+}
@@ -0,0 +1,45 @@
+package io.github.gaol.git_rev_missing;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+public class BatchTest {
+
+    @Test
+    public void testReadManifest() throws Exception {
+        File manifest = Files.createTempFile("g_r_m-manifest", ".json").toFile();
+        manifest.deleteOnExit();
+        Files.write(manifest.toPath(), ("{\"repositories\": [" +
+                "{\"repo\": \"https://github.com/owner/repo\", \"pairs\": [\"7.4.0..7.4.1\"], \"chain\": [\"7.4.1\", \"8.0.0\", \"8.0.1\"]}," +
+                "{\"repo\": \"/tmp/clone.git\", \"from\": [\"fix\"], \"to\": [\"7.3.x\", \"7.4.x\"]}" +
+                "]}").getBytes(StandardCharsets.UTF_8));
+        List<Batch.Entry> entries = Batch.readManifest(manifest);
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals("https://github.com/owner/repo", entries.get(0).repo);
+        Assert.assertEquals(Arrays.asList(RevisionPair.of("7.4.0", "7.4.1"), RevisionPair.of("7.4.1", "8.0.0"), RevisionPair.of("8.0.0", "8.0.1")),
+                entries.get(0).pairs);
+        Assert.assertEquals(Arrays.asList(RevisionPair.of("fix", "7.3.x"), RevisionPair.of("fix", "7.4.x")), entries.get(1).pairs);
+    }
+
+    @Test
+    public void testWriteResults() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Batch.writeResults(Arrays.asList(
+                Batch.Result.of("/tmp/clone.git", RevisionPair.of("a", "b"), new MissingCommit()),
+                Batch.Result.error("/tmp/missing.git", "Not found")), out);
+        String json = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertTrue(json, json.contains("\"revA\" : \"a\""));
+        Assert.assertTrue(json, json.contains("\"missingCommit\""));
+        Assert.assertTrue(json, json.contains("\"error\" : \"Not found\""));
+        // no revisions for the repository failed
+        Assert.assertEquals(json, json.indexOf("\"revA\""), json.lastIndexOf("\"revA\""));
+    }
+
+}
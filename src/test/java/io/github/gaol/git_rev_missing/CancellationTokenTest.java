@@ -0,0 +1,63 @@
+package io.github.gaol.git_rev_missing;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CancellationTokenTest {
+
+    @Test
+    public void testCallbacksOutOfLock() throws Exception {
+        CancellationToken token = new CancellationToken();
+        AtomicBoolean registered = new AtomicBoolean();
+        // another check registers on the same token from another thread while the callback is run
+        token.onCancel(() -> {
+            CountDownLatch done = new CountDownLatch(1);
+            new Thread(() -> {
+                token.onCancel(() -> registered.set(true));
+                done.countDown();
+            }).start();
+            try {
+                Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        token.cancel();
+        Assert.assertTrue(registered.get());
+        Assert.assertTrue(token.isCancelled());
+    }
+
+    @Test
+    public void testNotRunAfterRemoved() throws Exception {
+        CancellationToken token = new CancellationToken();
+        CountDownLatch running = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        AtomicBoolean finished = new AtomicBoolean();
+        Runnable slow = () -> {
+            running.countDown();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finished.set(true);
+        };
+        Runnable removed = runs::incrementAndGet;
+        token.onCancel(slow);
+        token.onCancel(removed);
+        Thread canceller = new Thread(token::cancel);
+        canceller.start();
+        Assert.assertTrue(running.await(5, TimeUnit.SECONDS));
+        // waits for the callbacks being run
+        token.removeOnCancel(removed);
+        Assert.assertTrue(finished.get());
+        Assert.assertEquals(1, runs.get());
+        canceller.join();
+    }
+
+}
@@ -0,0 +1,78 @@
+package io.github.gaol.git_rev_missing;
+
+import org.jboss.set.aphrodite.domain.Commit;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class CompactHistoryTest {
+
+    @Test
+    public void testPackedShas() {
+        Random random = new Random(7);
+        List<Commit> commits = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder sha = new StringBuilder();
+            for (int j = 0; j < 40; j++) {
+                sha.append(Character.forDigit(random.nextInt(16), 16));
+            }
+            commits.add(new Commit(sha.toString(), "Fix " + i % 10));
+        }
+        CompactHistory history = CompactHistory.of(commits);
+        Assert.assertEquals(1000, history.size());
+        for (int i = 0; i < commits.size(); i++) {
+            Assert.assertEquals(commits.get(i).getSha(), history.sha(i));
+            Assert.assertEquals(commits.get(i).getMessage(), history.message(i));
+            Assert.assertEquals(i, history.indexOf(commits.get(i).getSha()));
+        }
+        Assert.assertEquals(-1, history.indexOf("0000000000000000000000000000000000000000"));
+        // each message is kept once
+        Assert.assertEquals(10, history.messages().size());
+    }
+
+    @Test
+    public void testOtherShas() {
+        String upperCase = "6A7D8DD7FAE154653D04B5C0CA6184B3BD40C107";
+        CompactHistory history = CompactHistory.of(Arrays.asList(new Commit("a1", "Fix 1"),
+                new Commit(upperCase, "Fix 2"), new Commit("6a7d8dd7fae154653d04b5c0ca6184b3bd40c107", "Fix 3")));
+        Assert.assertEquals("a1", history.sha(0));
+        Assert.assertEquals(upperCase, history.sha(1));
+        Assert.assertEquals(1, history.indexOf(upperCase));
+        Assert.assertEquals(2, history.indexOf("6a7d8dd7fae154653d04b5c0ca6184b3bd40c107"));
+        Assert.assertFalse(history.containsSha("a2"));
+    }
+
+    @Test
+    public void testMessagePool() {
+        CompactHistory.MessagePool pool = new CompactHistory.MessagePool();
+        CompactHistory revA = CompactHistory.of(Arrays.asList(new Commit("a1", "[UNDERTOW-1657] Fix issue with h2"),
+                new Commit("a2", "Merge pull request #1")), pool);
+        CompactHistory revB = CompactHistory.of(Arrays.asList(new Commit("b1", "[UNDERTOW-1657] Fix issue with h2"),
+                new Commit("b2", "Fix issue with h2")), pool);
+        Assert.assertEquals(revA.messageId(0), revB.messageId(0));
+        // the same trimmed form, which is not kept as another message
+        Assert.assertEquals(revA.messageId(0), pool.trimmedId(revA.messageId(0)));
+        Assert.assertEquals(revA.messageId(0), pool.trimmedId(revB.messageId(1)));
+        Assert.assertEquals(revA.messageId(0), pool.trimmedIdIfPresent("Fix issue with h2"));
+        Assert.assertEquals(pool.trimmedId(revA.messageId(1)), revA.messageId(1));
+        Assert.assertEquals(-1, pool.trimmedIdIfPresent("Fix issue with h3"));
+        Assert.assertEquals(3, pool.size());
+
+        // more than the initial capacity of the tables
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(pool.id("[WFLY-" + i + "] Fix " + i), pool.trimmedId(pool.id("Fix " + i)));
+        }
+        Assert.assertEquals(203, pool.size());
+        Assert.assertEquals(revA.messageId(0), pool.idIfPresent("[UNDERTOW-1657] Fix issue with h2"));
+        Assert.assertEquals(pool.id("[WFLY-99] Fix 99"), pool.trimmedIdIfPresent("Fix 99"));
+
+        CompactHistory filtered = revA.filter(i -> !revA.message(i).startsWith("Merge "));
+        Assert.assertEquals(1, filtered.size());
+        Assert.assertEquals("a1", filtered.commit(0).getSha());
+    }
+
+}
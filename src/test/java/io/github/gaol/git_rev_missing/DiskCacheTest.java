@@ -0,0 +1,157 @@
+package io.github.gaol.git_rev_missing;
+
+import org.jboss.set.aphrodite.domain.Commit;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class DiskCacheTest {
+
+    @Test
+    public void testReopen() throws Exception {
+        File dir = Files.createTempDirectory("g_r_m-cache").toFile();
+        DiskCache cache = DiskCache.open(dir, 1024 * 1024);
+        Assert.assertSame(cache, DiskCache.open(dir, 1024 * 1024));
+        try {
+            DiskCache.open(dir, 2 * 1024 * 1024);
+            Assert.fail("It is open with a different max size");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("it cannot be opened with: 2097152 bytes"));
+        }
+        cache.putFiles("files:a", Arrays.asList(new FilePatch("a.txt", "@@ -1 +1 @@\n-a\n+b"), new FilePatch("img.png", null)));
+        cache.putCommits("history:a", Collections.singletonList(new Commit("abc", "Fix bug Y")));
+        cache.close();
+        // still open by the other opener
+        Assert.assertSame(cache, DiskCache.open(dir, 1024 * 1024));
+        cache.close();
+        cache.close();
+
+        DiskCache reopened = DiskCache.open(dir, 2 * 1024 * 1024);
+        Assert.assertNotSame(cache, reopened);
+        reopened.close();
+        cache = DiskCache.open(dir, 1024 * 1024);
+        List<FilePatch> files = cache.getFiles("files:a");
+        Assert.assertEquals(2, files.size());
+        Assert.assertEquals("a.txt", files.get(0).getPath());
+        Assert.assertEquals("@@ -1 +1 @@\n-a\n+b", files.get(0).getPatch());
+        Assert.assertEquals("", files.get(1).getPatch());
+        List<Commit> commits = cache.getCommits("history:a");
+        Assert.assertEquals("abc", commits.get(0).getSha());
+        Assert.assertEquals("Fix bug Y", commits.get(0).getMessage());
+        Assert.assertNull(cache.getFiles("files:b"));
+        cache.close();
+    }
+
+    @Test
+    public void testBrokenTail() throws Exception {
+        File dir = Files.createTempDirectory("g_r_m-cache").toFile();
+        DiskCache cache = DiskCache.open(dir, 1024 * 1024);
+        cache.putCommits("history:a", Collections.singletonList(new Commit("abc", "Fix bug Y")));
+        cache.close();
+        // an interrupted write
+        Files.write(new File(dir, "cache.dat").toPath(), new byte[]{0x47, 0x52, 0x4d}, StandardOpenOption.APPEND);
+
+        cache = DiskCache.open(dir, 1024 * 1024);
+        Assert.assertEquals("abc", cache.getCommits("history:a").get(0).getSha());
+        cache.putCommits("history:b", Collections.singletonList(new Commit("def", "Add feature X")));
+        cache.close();
+
+        cache = DiskCache.open(dir, 1024 * 1024);
+        Assert.assertEquals("def", cache.getCommits("history:b").get(0).getSha());
+        cache.close();
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        File dir = Files.createTempDirectory("g_r_m-cache").toFile();
+        long maxBytes = 16 * 1024;
+        DiskCache cache = DiskCache.open(dir, maxBytes);
+        for (int i = 0; i < 200; i++) {
+            cache.putFiles("files:" + i, Collections.singletonList(new FilePatch("f" + i, randomPatch(i))));
+            // keeps the first one used
+            Assert.assertNotNull(cache.getFiles("files:0"));
+        }
+        Assert.assertTrue(cache.size() <= maxBytes);
+        Assert.assertNotNull(cache.getFiles("files:0"));
+        Assert.assertNotNull(cache.getFiles("files:199"));
+        Assert.assertNull(cache.getFiles("files:1"));
+        cache.close();
+    }
+
+    @Test
+    public void testCompactKeepsSmallerEntries() throws Exception {
+        File dir = Files.createTempDirectory("g_r_m-cache").toFile();
+        long maxBytes = 16 * 1024;
+        DiskCache cache = DiskCache.open(dir, maxBytes);
+        for (int i = 0; i < 5; i++) {
+            cache.putFiles("files:small" + i, Collections.singletonList(new FilePatch("f" + i, randomPatch(i))));
+        }
+        for (int i = 0; i < 3; i++) {
+            List<FilePatch> files = new ArrayList<>();
+            for (int j = 0; j < 22; j++) {
+                files.add(new FilePatch("f" + j, randomPatch(100 * i + j)));
+            }
+            cache.putFiles("files:big" + i, files);
+        }
+        Assert.assertTrue(cache.size() <= maxBytes);
+        // the second big one used recently does not fit, the small ones used before it still do
+        Assert.assertNotNull(cache.getFiles("files:big2"));
+        Assert.assertNull(cache.getFiles("files:big1"));
+        for (int i = 0; i < 5; i++) {
+            Assert.assertNotNull(cache.getFiles("files:small" + i));
+        }
+        cache.close();
+    }
+
+    @Test
+    public void testSharedByProcesses() throws Exception {
+        File dir = Files.createTempDirectory("g_r_m-cache").toFile();
+        long maxBytes = 16 * 1024;
+        // one cache per process
+        DiskCache first = new DiskCache(dir.toPath(), maxBytes);
+        DiskCache second = new DiskCache(dir.toPath(), maxBytes);
+        first.putCommits("history:a", Collections.singletonList(new Commit("abc", "Fix bug Y")));
+        Assert.assertEquals("abc", second.getCommits("history:a").get(0).getSha());
+
+        // compacted by the second one, the entries of the first one are kept with its own
+        for (int i = 0; i < 80; i++) {
+            second.putFiles("files:" + i, Collections.singletonList(new FilePatch("f" + i, randomPatch(i))));
+            Assert.assertNotNull(second.getCommits("history:a"));
+        }
+        Assert.assertTrue(second.size() <= maxBytes);
+        Assert.assertEquals("abc", first.getCommits("history:a").get(0).getSha());
+        Assert.assertEquals(randomPatch(79), first.getFiles("files:79").get(0).getPatch());
+        Assert.assertNull(first.getFiles("files:0"));
+
+        // appended to the same compacted file
+        first.putCommits("history:b", Collections.singletonList(new Commit("def", "Add feature X")));
+        Assert.assertEquals("def", second.getCommits("history:b").get(0).getSha());
+        Assert.assertEquals(randomPatch(79), second.getFiles("files:79").get(0).getPatch());
+        first.close();
+        second.close();
+
+        DiskCache cache = DiskCache.open(dir, maxBytes);
+        Assert.assertEquals("def", cache.getCommits("history:b").get(0).getSha());
+        Assert.assertEquals("abc", cache.getCommits("history:a").get(0).getSha());
+        cache.close();
+    }
+
+    // not compressible
+    private static String randomPatch(int seed) {
+        java.util.Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder("@@ -1 +1 @@\n");
+        for (int i = 0; i < 500; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+}
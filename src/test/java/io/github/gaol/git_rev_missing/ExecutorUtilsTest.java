@@ -0,0 +1,65 @@
+package io.github.gaol.git_rev_missing;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ExecutorUtilsTest {
+
+    @Test
+    public void testStopOnFirstFailure() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Integer> inputs = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            inputs.add(i);
+        }
+        AtomicInteger started = new AtomicInteger();
+        try {
+            ExecutorUtils.mapConcurrently(inputs, i -> {
+                started.incrementAndGet();
+                if (i == 1) {
+                    throw new IllegalStateException("Failed to fetch " + i);
+                }
+                try {
+                    Thread.sleep(i == 0 ? 200 : 50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                return i;
+            }, executor, 2);
+            Assert.fail("The failure must be thrown");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Failed to fetch 1", e.getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+        // the slow first one is not waited for, and no more inputs are started after the failure
+        Assert.assertTrue("started: " + started.get(), started.get() <= 3);
+    }
+
+    @Test
+    public void testNestedOnBoundedExecutor() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // like the pairs of revisions checked at the same time, each fetching its patches on the same executor
+            Future<List<List<Integer>>> outer = Executors.newSingleThreadExecutor().submit(() ->
+                    ExecutorUtils.mapConcurrently(Arrays.asList(1, 2), pair -> {
+                        List<Integer> histories = ExecutorUtils.invokeAll(Arrays.asList(() -> pair, () -> pair * 10), executor);
+                        return ExecutorUtils.mapConcurrently(histories, i -> i + 1, executor, 2);
+                    }, executor, 2));
+            Assert.assertEquals(Arrays.asList(Arrays.asList(2, 11), Arrays.asList(3, 21)), outer.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
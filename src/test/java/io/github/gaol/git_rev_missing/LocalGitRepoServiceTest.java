@@ -0,0 +1,425 @@
+package io.github.gaol.git_rev_missing;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+public class LocalGitRepoServiceTest {
+
+    @Test
+    public void testParseFilePatches() {
+        String show = "diff --git a/f b/f\n" +
+                "index 7898192..422c2b7 100644\n" +
+                "--- a/f\n" +
+                "+++ b/f\n" +
+                "@@ -1 +1,2 @@\n" +
+                " a\n" +
+                "+b\n" +
+                "diff --git a/img.png b/img.png\n" +
+                "new file mode 100644\n" +
+                "index 0000000..f2ad6c7\n" +
+                "Binary files /dev/null and b/img.png differ\n";
+        List<FilePatch> files = LocalGitRepoService.parseFilePatches(show);
+        Assert.assertEquals(2, files.size());
+        Assert.assertEquals("f", files.get(0).getPath());
+        Assert.assertEquals("@@ -1 +1,2 @@\n a\n+b", files.get(0).getPatch());
+        Assert.assertEquals("img.png", files.get(1).getPath());
+        Assert.assertEquals("", files.get(1).getPatch());
+
+        // the binary file before a text file
+        show = "diff --git a/img.png b/img.png\n" +
+                "index f2ad6c7..0a1b2c3 100644\n" +
+                "Binary files a/img.png and b/img.png differ\n" +
+                "diff --git a/run.sh b/run.sh\n" +
+                "old mode 100644\n" +
+                "new mode 100755\n" +
+                "diff --git a/f b/f\n" +
+                "index 7898192..422c2b7 100644\n" +
+                "--- a/f\n" +
+                "+++ b/f\n" +
+                "@@ -1 +1,2 @@\n" +
+                " a\n" +
+                "+b\n";
+        files = LocalGitRepoService.parseFilePatches(show);
+        Assert.assertEquals(3, files.size());
+        Assert.assertEquals("img.png", files.get(0).getPath());
+        Assert.assertEquals("run.sh", files.get(1).getPath());
+        Assert.assertEquals("f", files.get(2).getPath());
+        Assert.assertEquals("@@ -1 +1,2 @@\n a\n+b\n", files.get(2).getPatch());
+    }
+
+    @Test
+    public void testMissingCommits() throws Exception {
+        File repo = createRepository();
+        try (GitRevMissing grm = GitRevMissing.create(repo.getParentFile().toURI().toURL(), null, null)) {
+            MissingCommit missingCommit = grm.missingCommits(repo.getName(), "revA", "revB");
+            Assert.assertEquals(Arrays.asList("Fix bug Y"), messages(missingCommit.getCommits()));
+            Assert.assertTrue(missingCommit.getSuspiciousCommits().isEmpty());
+
+            Assert.assertTrue(grm.missingCommits(repo.getName(), "revA", "revC").isClean());
+        }
+    }
+
+    @Test
+    public void testRepositoryOutsideRoot() throws Exception {
+        File repo = createRepository();
+        File root = new File(repo.getParentFile(), "clones");
+        Assert.assertTrue(root.mkdir());
+        LocalGitRepoService repoService = new LocalGitRepoService(root);
+        for (String repoId : Arrays.asList("../repo", "../../" + repo.getParentFile().getName() + "/repo")) {
+            try {
+                repoService.getCommitsBetween(repoId, "revA", "revB");
+                Assert.fail("The repository outside the root must be rejected: " + repoId);
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("is not under"));
+            }
+        }
+        try {
+            repoService.fetchCommitsSince(repo.toURI().toURL(), "revA", 0);
+            Assert.fail("The repository outside the root must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // the clones under the root are fine
+        Assert.assertEquals(4, new LocalGitRepoService(repo.getParentFile()).getCommitsBetween("clones/../repo", "revB", "revA").size());
+    }
+
+    @Test
+    public void testOptionLikeRevision() throws Exception {
+        File repo = createRepository();
+        File output = new File(repo.getParentFile(), "output.txt");
+        for (boolean compareMode : new boolean[]{false, true}) {
+            try (GitRevMissing grm = GitRevMissing.create(repo.getParentFile().toURI().toURL(), null, null).setCompareMode(compareMode)) {
+                grm.missingCommits(repo.getName(), "revA", "--output=" + output.getAbsolutePath());
+                Assert.fail("The revision must be rejected");
+            } catch (RuntimeException e) {
+                Throwable cause = e;
+                while (cause.getCause() != null && !(cause instanceof IllegalArgumentException)) {
+                    cause = cause.getCause();
+                }
+                Assert.assertTrue(cause.getMessage(), cause instanceof IllegalArgumentException);
+            }
+            Assert.assertFalse(output.exists());
+        }
+        try {
+            LocalGitRepoService.revision("--exec=touch");
+            Assert.fail("The revision must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBinaryChangesNotFingerprinted() throws Exception {
+        File repo = createRepository();
+        git(repo, "checkout", "-q", "revA");
+        commit(repo, "logo.png", "logo\0version 2\n", "Update the logo");
+        git(repo, "checkout", "-q", "revB");
+        // an unrelated change of the same binary file
+        commit(repo, "logo.png", "logo\0version 3\n", "Change the colors");
+        try (GitRevMissing grm = GitRevMissing.create(repo.getParentFile().toURI().toURL(), null, null)) {
+            MissingCommit missingCommit = grm.missingCommits(repo.getName(), "revA", "revB");
+            Assert.assertTrue(messages(missingCommit.getCommits()).contains("Update the logo"));
+        }
+    }
+
+    @Test
+    public void testMissingCommitsCompareMode() throws Exception {
+        File repo = createRepository();
+        try (GitRevMissing grm = GitRevMissing.create(repo.getParentFile().toURI().toURL(), null, null).setCompareMode(true)) {
+            MissingCommit missingCommit = grm.missingCommits(repo.getName(), "revA", "revB");
+            Assert.assertEquals(Arrays.asList("Fix bug Y"), messages(missingCommit.getCommits()));
+        }
+    }
+
+    @Test
+    public void testMissingCommitsOfPairs() throws Exception {
+        File repo = createRepository();
+        try (GitRevMissing grm = GitRevMissing.create(repo.getParentFile().toURI().toURL(), null, null).setConcurrency(2)) {
+            List<RevisionPair> pairs = RevisionPair.matrix(Arrays.asList("revA"), Arrays.asList("revB", "revC"));
+            pairs.add(RevisionPair.parse("revA..revB"));
+            Map<RevisionPair, MissingCommit> missingCommits = grm.missingCommits(repo.getName(), pairs);
+            Assert.assertEquals(Arrays.asList(RevisionPair.of("revA", "revB"), RevisionPair.of("revA", "revC")), new ArrayList<>(missingCommits.keySet()));
+            Assert.assertEquals(Arrays.asList("Fix bug Y"), messages(missingCommits.get(RevisionPair.of("revA", "revB")).getCommits()));
+            Assert.assertTrue(missingCommits.get(RevisionPair.of("revA", "revC")).isClean());
+        }
+    }
+
+    @Test
+    public void testMissingCommitsIncrementally() throws Exception {
+        File repo = createRepository();
+        File stateFile = new File(repo.getParentFile(), "state.json");
+        try (GitRevMissing grm = GitRevMissing.create(repo.getParentFile().toURI().toURL(), null, null).setStateFile(stateFile)) {
+            Assert.assertEquals(Arrays.asList("Fix bug Y"), messages(grm.missingCommits(repo.getName(), "revA", "revB").getCommits()));
+            Assert.assertTrue(stateFile.exists());
+
+            // 'Fix bug Y' is picked to revB, and a new commit in revA
+            String fix = git(repo, "log", "--format=%H", "--grep=Fix bug Y", "revA").trim();
+            git(repo, "checkout", "-q", "revB");
+            git(repo, "cherry-pick", fix);
+            git(repo, "checkout", "-q", "revA");
+            commit(repo, "feature-z.txt", "feature Z\n", "Add feature Z");
+            Assert.assertEquals(Arrays.asList("Add feature Z"), messages(grm.missingCommits(repo.getName(), "revA", "revB").getCommits()));
+
+            // nothing new
+            Assert.assertEquals(Arrays.asList("Add feature Z"), messages(grm.missingCommits(repo.getName(), "revA", "revB").getCommits()));
+
+            // the pick of 'Fix bug Y' is dropped by a force push of revB, its SHA1 in the state does not count any more
+            git(repo, "branch", "-f", "revB", "revB~1");
+            Assert.assertEquals(Arrays.asList("Add feature Z", "Fix bug Y"), messages(grm.missingCommits(repo.getName(), "revA", "revB").getCommits()));
+        }
+    }
+
+    @Test
+    public void testIncrementalStatePruned() throws Exception {
+        File repo = createRepository();
+        File stateFile = new File(repo.getParentFile(), "state.json");
+        String stateKey = IncrementalState.key(repo.getParentFile().toURI().toURL() + repo.getName(), "revA", "revB");
+        try (GitRevMissing grm = GitRevMissing.create(repo.getParentFile().toURI().toURL(), null, null).setStateFile(stateFile)) {
+            long since = System.currentTimeMillis() - GitRevMissingImpl.MONTH_MILLI;
+            Assert.assertEquals(Arrays.asList("Fix bug Y"), messages(grm.missingCommits(repo.getName(), "revA", "revB", since).getCommits()));
+            int revBCommits = IncrementalState.read(stateFile, stateKey).revBCommits.size();
+            Assert.assertTrue(revBCommits > 0);
+
+            // a new commit in revB, and the ones listed before the time window are dropped
+            git(repo, "checkout", "-q", "revB");
+            commit(repo, "feature-w.txt", "feature W\n", "Add feature W");
+            long listed = System.currentTimeMillis();
+            Thread.sleep(10);
+            Assert.assertEquals(Arrays.asList("Fix bug Y"), messages(grm.missingCommits(repo.getName(), "revA", "revB", listed).getCommits()));
+            List<IncrementalState.CommitState> kept = IncrementalState.read(stateFile, stateKey).revBCommits;
+            Assert.assertEquals(1, kept.size());
+            Assert.assertEquals("Add feature W", kept.get(0).message);
+            Assert.assertTrue(kept.get(0).listed >= listed);
+        }
+    }
+
+    @Test
+    public void testMissingCommitsStreaming() throws Exception {
+        File repo = createRepository();
+        // a second missing commit
+        git(repo, "checkout", "-q", "revA");
+        commit(repo, "feature-z.txt", "feature Z\n", "Add feature Z");
+        try (GitRevMissing grm = GitRevMissing.create(repo.getParentFile().toURI().toURL(), null, null).setConcurrency(2)) {
+            long since = System.currentTimeMillis() - GitRevMissingImpl.MONTH_MILLI;
+            List<String> missing = Collections.synchronizedList(new ArrayList<>());
+            Assert.assertTrue(grm.missingCommits(repo.getName(), "revA", "revB", since, (commitInfo, suspicious) -> {
+                Assert.assertFalse(suspicious);
+                missing.add(commitInfo.getCommit().getMessage());
+                return true;
+            }));
+            Collections.sort(missing);
+            Assert.assertEquals(Arrays.asList("Add feature Z", "Fix bug Y"), missing);
+
+            // stops at the first one
+            missing.clear();
+            Assert.assertFalse(grm.missingCommits(repo.getName(), "revA", "revB", since, (commitInfo, suspicious) -> {
+                missing.add(commitInfo.getCommit().getMessage());
+                return false;
+            }));
+            Assert.assertEquals(1, missing.size());
+        }
+        // each of them is reported once, by the full check and by the incremental check
+        File stateFile = new File(repo.getParentFile(), "state.json");
+        try (GitRevMissing grm = GitRevMissing.create(repo.getParentFile().toURI().toURL(), null, null).setStateFile(stateFile)) {
+            long since = System.currentTimeMillis() - GitRevMissingImpl.MONTH_MILLI;
+            for (int i = 0; i < 2; i++) {
+                List<String> missing = Collections.synchronizedList(new ArrayList<>());
+                Assert.assertTrue(grm.missingCommits(repo.getName(), "revA", "revB", since, (commitInfo, suspicious) -> {
+                    missing.add(commitInfo.getCommit().getMessage());
+                    return true;
+                }));
+                Collections.sort(missing);
+                Assert.assertEquals(Arrays.asList("Add feature Z", "Fix bug Y"), missing);
+                Assert.assertTrue(stateFile.exists());
+            }
+        }
+    }
+
+    @Test
+    public void testMissingCommitsCancelled() throws Exception {
+        File repo = createRepository();
+        // the same message in both revisions with different changes, so that their patches are fetched to compare
+        git(repo, "checkout", "-q", "revA");
+        commit(repo, "feature-q.txt", "feature Q\n", "Change feature Q");
+        git(repo, "checkout", "-q", "revB");
+        commit(repo, "feature-q.txt", "something else\n", "Change feature Q");
+        File stateFile = new File(repo.getParentFile(), "state.json");
+        CancellationToken token = new CancellationToken();
+        AtomicInteger tasks = new AtomicInteger();
+        Executor executor = ExecutorUtils.defaultExecutor();
+        // cancelled when the patches are fetched, after both histories are listed
+        Executor cancelling = task -> {
+            if (tasks.incrementAndGet() > 2) {
+                token.cancel();
+            }
+            executor.execute(task);
+        };
+        long since = System.currentTimeMillis() - GitRevMissingImpl.MONTH_MILLI;
+        try (GitRevMissing grm = GitRevMissing.create(repo.getParentFile().toURI().toURL(), null, null)
+                .setConcurrency(2).setExecutor(cancelling).setStateFile(stateFile)) {
+            MissingCommit missingCommit = grm.missingCommits(repo.getName(), "revA", "revB", since, token);
+            Assert.assertTrue(missingCommit.isCancelled());
+            Assert.assertFalse(missingCommit.isClean());
+            List<String> unresolved = messages(missingCommit.getUnresolvedCommits());
+            Assert.assertTrue(unresolved.contains("Change feature Q"));
+            // found by the fingerprint before it is cancelled
+            Assert.assertFalse(unresolved.contains("Add feature X"));
+            Assert.assertTrue(missingCommit.toString().contains("\"unresolvedCommits\""));
+            Assert.assertFalse(Thread.currentThread().isInterrupted());
+            Assert.assertFalse(stateFile.exists());
+
+            // cancelled before the histories are listed
+            missingCommit = grm.missingCommits(repo.getName(), "revA", "revB", since, token);
+            Assert.assertTrue(missingCommit.isCancelled());
+            Assert.assertTrue(missingCommit.getUnresolvedCommits().isEmpty());
+
+            missingCommit = grm.missingCommits(repo.getName(), "revA", "revB", since, CancellationToken.timeout(60_000));
+            Assert.assertFalse(missingCommit.isCancelled());
+            Assert.assertNull(missingCommit.getUnresolvedCommits());
+            Assert.assertEquals(Arrays.asList("Change feature Q", "Fix bug Y"), messages(missingCommit.getCommits()));
+            Assert.assertFalse(missingCommit.toString().contains("\"cancelled\""));
+            Assert.assertTrue(stateFile.exists());
+        }
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        File repo = createRepository();
+        URL gitRootURL = repo.getParentFile().toURI().toURL();
+        ObjectName metricsName = new ObjectName(RepoService.METRICS_DOMAIN + ":type=RepoService,name=" + ObjectName.quote("null@" + gitRootURL.getPath()));
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try (GitRevMissing grm = GitRevMissing.create(gitRootURL, null, null).setStatsEnabled(true)) {
+            MissingCommit missingCommit = grm.missingCommits(repo.getName(), "revA", "revB");
+            CheckStats stats = missingCommit.getStats();
+            Assert.assertNotNull(stats);
+            Assert.assertEquals(2, stats.getTimers().get("api.git-log").getCount());
+            Assert.assertEquals(1, stats.getTimers().get("phase.histories").getCount());
+            // all commits are found by the fingerprints, except the missing one, which has no candidates to compare
+            Assert.assertEquals(1, stats.getTimers().get("phase.patch-ids").getCount());
+            Assert.assertTrue(stats.getTimers().containsKey("api.git-show"));
+            Assert.assertFalse(stats.getTimers().containsKey("compare.patches"));
+            Assert.assertTrue(stats.getCaches().containsKey("patches"));
+            Assert.assertTrue(new ObjectMapper().writeValueAsString(missingCommit).contains("\"stats\""));
+
+            Assert.assertTrue(mBeanServer.isRegistered(metricsName));
+            TabularData timers = (TabularData) mBeanServer.getAttribute(metricsName, "Timers");
+            Assert.assertFalse(timers.isEmpty());
+
+            Assert.assertNull(grm.setStatsEnabled(false).missingCommits(repo.getName(), "revA", "revB").getStats());
+        }
+        // the pairs run at the same time on the same connection, the stats of each of them are its own
+        try (GitRevMissing grm = GitRevMissing.create(gitRootURL, null, null).setStatsEnabled(true).setConcurrency(2)) {
+            Map<RevisionPair, MissingCommit> missingCommits = grm.missingCommits(repo.getName(),
+                    RevisionPair.matrix(Arrays.asList("revA"), Arrays.asList("revB", "revC")));
+            for (MissingCommit missingCommit : missingCommits.values()) {
+                Assert.assertEquals(1, missingCommit.getStats().getTimers().get("phase.histories").getCount());
+                Assert.assertEquals(1, missingCommit.getStats().getTimers().get("phase.patch-ids").getCount());
+            }
+            // each history is listed once for both pairs
+            Assert.assertEquals(3, missingCommits.values().stream()
+                    .mapToLong(m -> m.getStats().getTimers().get("api.git-log").getCount()).sum());
+        }
+        // kept for the next instances until it is idle for a while
+        Assert.assertTrue(mBeanServer.isRegistered(metricsName));
+        GitRevMissingImpl.repoServices().evictIdle();
+        Assert.assertFalse(mBeanServer.isRegistered(metricsName));
+    }
+
+    @Test
+    public void testHistoryCacheTtl() throws Exception {
+        File repo = createRepository();
+        try (GitRevMissing grm = GitRevMissing.create(repo.getParentFile().toURI().toURL(), null, null).setHistoryCacheTtl(60_000)) {
+            Assert.assertEquals(Arrays.asList("Fix bug Y"), messages(grm.missingCommits(repo.getName(), "revA", "revB").getCommits()));
+            // the new commit is not seen until the list of revA expires
+            git(repo, "checkout", "-q", "revA");
+            commit(repo, "feature-z.txt", "feature Z\n", "Add feature Z");
+            Assert.assertEquals(Arrays.asList("Fix bug Y"), messages(grm.missingCommits(repo.getName(), "revA", "revB").getCommits()));
+            grm.setHistoryCacheTtl(0);
+            Assert.assertEquals(Arrays.asList("Add feature Z", "Fix bug Y"), messages(grm.missingCommits(repo.getName(), "revA", "revB").getCommits()));
+        }
+    }
+
+    // revB has one commit cherry-picked, two with the message reworded, and misses 'Fix bug Y'; revC has all of revA rebased
+    static File createRepository() throws IOException {
+        File repo = Files.createTempDirectory("g_r_m").resolve("repo").toFile();
+        Assert.assertTrue(repo.mkdirs());
+        git(repo, "init", "-q");
+        commit(repo, "README", "readme\n", "Initial commit");
+        git(repo, "branch", "base");
+        git(repo, "checkout", "-q", "-b", "revA");
+        String feature = commit(repo, "feature.txt", "feature X\n", "Add feature X");
+        commit(repo, "bug.txt", "fix Y\n", "Fix bug Y");
+        String docs = commit(repo, "docs.txt", "docs\n", "[ISSUE-1] Update docs");
+        String reworded = commit(repo, "handler.txt", "handler\n", "Refactor the handler");
+        git(repo, "checkout", "-q", "-b", "revB", "base");
+        commit(repo, "other.txt", "other\n", "Something else in revB");
+        git(repo, "cherry-pick", feature);
+        git(repo, "cherry-pick", docs);
+        git(repo, "commit", "-q", "--amend", "-m", "Update docs");
+        git(repo, "cherry-pick", reworded);
+        git(repo, "commit", "-q", "--amend", "-m", "Make it pluggable");
+        git(repo, "checkout", "-q", "-b", "revC", "revA");
+        git(repo, "rebase", "-q", "--onto", "revB", "base");
+        return repo;
+    }
+
+    private static String commit(File repo, String file, String content, String message) throws IOException {
+        Files.write(new File(repo, file).toPath(), content.getBytes(StandardCharsets.UTF_8));
+        git(repo, "add", file);
+        git(repo, "commit", "-q", "-m", message);
+        return git(repo, "rev-parse", "HEAD").trim();
+    }
+
+    static String git(File repo, String... args) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList("git", "-c", "user.name=test", "-c", "user.email=test@localhost",
+                "-c", "commit.gpgsign=false", "-c", "init.defaultBranch=main"));
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).directory(repo).redirectErrorStream(true).start();
+        try {
+            byte[] output = readAll(process);
+            Assert.assertEquals(String.join(" ", command) + ": " + new String(output, StandardCharsets.UTF_8), 0, process.waitFor());
+            return new String(output, StandardCharsets.UTF_8);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] readAll(Process process) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int len;
+        while ((len = process.getInputStream().read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<String> messages(List<CommitInfo> commits) {
+        List<String> messages = new ArrayList<>();
+        for (CommitInfo commitInfo : commits) {
+            messages.add(commitInfo.getCommit().getMessage());
+        }
+        return messages;
+    }
+
+}
@@ -0,0 +1,40 @@
+package io.github.gaol.git_rev_missing;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.set.aphrodite.domain.Commit;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+public class NdjsonWriterTest {
+
+    @Test
+    public void testOneRecordPerLine() throws Exception {
+        MissingCommit missingCommit = new MissingCommit()
+                .setCommits(Collections.singletonList(new CommitInfo().setCommit(new Commit("abc", "Fix bug Y\n\nwith \"details\""))
+                        .setCommitLink("https://github.com/owner/repo/commit/abc")))
+                .setSuspiciousCommits(Collections.singletonList(new CommitInfo().setCommit(new Commit("def", "Refactor"))
+                        .setCommitLink("https://github.com/owner/repo/commit/def").setTargetLink("https://github.com/owner/repo/commit/123")));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (NdjsonWriter writer = new NdjsonWriter(out, true)) {
+            writer.write("revA", "revB", missingCommit);
+        }
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        Assert.assertEquals(2, lines.length);
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode missing = mapper.readTree(lines[0]);
+        Assert.assertEquals("missing", missing.get("type").asText());
+        Assert.assertEquals("revA", missing.get("revA").asText());
+        Assert.assertEquals("Fix bug Y\n\nwith \"details\"", missing.get("message").asText());
+        Assert.assertFalse(missing.has("targetLink"));
+        JsonNode suspicious = mapper.readTree(lines[1]);
+        Assert.assertEquals("suspicious", suspicious.get("type").asText());
+        Assert.assertEquals("def", suspicious.get("sha").asText());
+        Assert.assertEquals("https://github.com/owner/repo/commit/123", suspicious.get("targetLink").asText());
+    }
+
+}
@@ -0,0 +1,129 @@
+package io.github.gaol.git_rev_missing;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class PatchSimilarityTest {
+
+    @Test
+    public void testDistance() {
+        Random random = new Random(7);
+        for (int it = 0; it < 500; it++) {
+            int[] a = randomArray(random, random.nextInt(20));
+            int[] b = randomArray(random, random.nextInt(20));
+            int expected = a.length + b.length - 2 * lcs(a, b);
+            Assert.assertEquals(expected, PatchSimilarity.distance(a, b, a.length + b.length));
+            if (expected > 0) {
+                Assert.assertEquals(-1, PatchSimilarity.distance(a, b, expected - 1));
+            }
+        }
+    }
+
+    @Test
+    public void testRatio() {
+        Assert.assertEquals(1.0d, PatchSimilarity.ratio("+a\n+b", "+a\n+b", 0.9d), 0.0d);
+        // 1 character changed in 20
+        Assert.assertEquals(0.9d, PatchSimilarity.ratio("+abcdefgh\n", "+abcdXfgh\n", 0.5d), 0.0001d);
+        Assert.assertTrue(PatchSimilarity.ratio("+abcdefgh\n", "+abcdXfgh\n", 0.95d) <= 0.95d);
+        Assert.assertTrue(PatchSimilarity.ratio("+a", "+abcdefghijklmn", 0.9d) <= 0.9d);
+        // 1 line changed in 10
+        Assert.assertEquals(0.8d, PatchSimilarity.lineRatio("1\n2\n3\n4\n5", "1\n2\nX\n4\n5", 0.5d), 0.0001d);
+    }
+
+    @Test
+    public void testHugePatch() {
+        Random random = new Random(3);
+        StringBuilder p1 = new StringBuilder();
+        StringBuilder p2 = new StringBuilder();
+        for (int i = 0; i < 100_000; i++) {
+            p1.append("+line ").append(random.nextInt()).append('\n');
+            p2.append("+line ").append(random.nextInt()).append('\n');
+        }
+        long start = System.nanoTime();
+        Assert.assertTrue(PatchSimilarity.ratio(p1.toString(), p2.toString(), 0.9d) <= 0.9d);
+        Assert.assertTrue(System.nanoTime() - start < 10_000_000_000L);
+
+        // the same lines in the reverse order, too expensive to compare even by lines, so the ratio is an upper bound
+        List<String> lines = Arrays.asList(p1.toString().split("\n"));
+        Collections.reverse(lines);
+        String reversed = String.join("\n", lines) + "\n";
+        Assert.assertTrue(PatchSimilarity.ratio(p1.toString(), reversed, 0.9d) > 0.9d);
+    }
+
+    // the verdicts agree with the Jaro-Winkler similarity on the patches which are clearly similar or not
+    @Test
+    public void testAgreement() throws IOException {
+        List<String> lines = addedLines("/patches/agreement.patch");
+        Random random = new Random(1);
+        int cases = 0;
+        int agreed = 0;
+        for (int size : new int[]{10, 30, 100}) {
+            for (int it = 0; it < 30; it++) {
+                List<String> a = window(lines, random, size);
+                List<String> small = new ArrayList<>(a);
+                int i = random.nextInt(size);
+                small.set(i, small.get(i) + " // changed");
+                List<String> unrelated = window(lines, random, size);
+                for (List<String> b : Arrays.asList(small, unrelated)) {
+                    String p1 = "+" + String.join("\n+", a);
+                    String p2 = "+" + String.join("\n+", b);
+                    boolean jaroWinkler = RepoService.similarness(p1, p2) > 0.9d;
+                    boolean patchSimilarity = PatchSimilarity.ratio(p1, p2, 0.9d) > 0.9d;
+                    cases++;
+                    if (jaroWinkler == patchSimilarity) {
+                        agreed++;
+                    }
+                }
+            }
+        }
+        Assert.assertTrue(agreed + " of " + cases + " agreed", agreed >= cases * 0.9d);
+    }
+
+    // the lines added by the patch in the test resources
+    private static List<String> addedLines(String resource) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                PatchSimilarityTest.class.getResourceAsStream(resource), StandardCharsets.UTF_8))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith("+") && !line.startsWith("+++")) {
+                    lines.add(line.substring(1));
+                }
+            }
+        }
+        return lines;
+    }
+
+    private static List<String> window(List<String> lines, Random random, int size) {
+        int start = random.nextInt(lines.size() - size);
+        return new ArrayList<>(lines.subList(start, start + size));
+    }
+
+    private static int[] randomArray(Random random, int length) {
+        int[] array = new int[length];
+        for (int i = 0; i < length; i++) {
+            array[i] = random.nextInt(4);
+        }
+        return array;
+    }
+
+    private static int lcs(int[] a, int[] b) {
+        int[][] dp = new int[a.length + 1][b.length + 1];
+        for (int i = 1; i <= a.length; i++) {
+            for (int j = 1; j <= b.length; j++) {
+                dp[i][j] = a[i - 1] == b[j - 1] ? dp[i - 1][j - 1] + 1 : Math.max(dp[i - 1][j], dp[i][j - 1]);
+            }
+        }
+        return dp[a.length][b.length];
+    }
+
+}
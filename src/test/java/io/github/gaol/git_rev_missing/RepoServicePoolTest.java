@@ -0,0 +1,126 @@
+package io.github.gaol.git_rev_missing;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class RepoServicePoolTest {
+
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger destroyed = new AtomicInteger();
+
+    private final Function<String, RepoService> factory = key -> {
+        created.incrementAndGet();
+        return new RepoService() {
+            @Override
+            List<FilePatch> fetchCommitFiles(String repoIdOrName, String sha) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            void destroy() {
+                destroyed.incrementAndGet();
+                super.destroy();
+            }
+        };
+    };
+
+    @Test
+    public void testShared() {
+        RepoServicePool pool = new RepoServicePool(0);
+        RepoService service = pool.acquire("user@github.com", factory);
+        Assert.assertSame(service, pool.acquire("user@github.com", factory));
+        Assert.assertNotSame(service, pool.acquire("other@github.com", factory));
+        Assert.assertEquals(2, created.get());
+        Assert.assertEquals(2, pool.references("user@github.com"));
+
+        // still used by the other instance
+        pool.release("user@github.com");
+        Assert.assertEquals(0, destroyed.get());
+        pool.release("user@github.com");
+        Assert.assertEquals(1, destroyed.get());
+        Assert.assertEquals(0, pool.references("user@github.com"));
+        try {
+            pool.release("user@github.com");
+            Assert.fail("It is released already");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // a new one once the last one is destroyed
+        Assert.assertNotSame(service, pool.acquire("user@github.com", factory));
+    }
+
+    @Test
+    public void testIdleEviction() throws Exception {
+        RepoServicePool pool = new RepoServicePool(200);
+        RepoService service = pool.acquire("user@github.com", factory);
+        pool.release("user@github.com");
+        // acquired again before it is evicted
+        Assert.assertSame(service, pool.acquire("user@github.com", factory));
+        Thread.sleep(400);
+        Assert.assertEquals(0, destroyed.get());
+        pool.release("user@github.com");
+        for (int i = 0; i < 50 && destroyed.get() == 0; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(1, destroyed.get());
+        Assert.assertEquals(1, created.get());
+
+        pool.acquire("user@github.com", factory);
+        pool.release("user@github.com");
+        pool.evictIdle();
+        Assert.assertEquals(2, destroyed.get());
+    }
+
+    @Test
+    public void testSharedSettings() throws Exception {
+        URL gitRootURL = Files.createTempDirectory("pool").toUri().toURL();
+        GitRevMissing first = GitRevMissing.create(gitRootURL, "settings", null).setHistoryCacheTtl(60_000);
+        try (GitRevMissing second = GitRevMissing.create(gitRootURL, "settings", null)) {
+            // the same settings are fine, the different ones would change them under the first instance
+            second.setHistoryCacheTtl(60_000);
+            try {
+                second.setMemoryCacheSize(1024);
+                Assert.fail("The memory cache size of the shared service cannot be changed");
+            } catch (IllegalStateException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("memory cache size"));
+            }
+            first.close();
+            // not shared anymore
+            second.setMemoryCacheSize(1024);
+        }
+        // the settings are not inherited by the next instances
+        try (GitRevMissing third = GitRevMissing.create(gitRootURL, "settings", null);
+             GitRevMissing fourth = GitRevMissing.create(gitRootURL, "settings", null)) {
+            try {
+                third.setHistoryCacheTtl(60_000);
+                Assert.fail("The history cache TTL of the shared service cannot be changed");
+            } catch (IllegalStateException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("history cache TTL"));
+            }
+            fourth.setMemoryCacheSize(RepoService.DEFAULT_MEMORY_CACHE_SIZE);
+        }
+    }
+
+    @Test
+    public void testFailedToCreate() {
+        RepoServicePool pool = new RepoServicePool(0);
+        try {
+            pool.acquire("user@github.com", key -> {
+                throw new RuntimeException("Bad credentials");
+            });
+            Assert.fail("It cannot be created");
+        } catch (RuntimeException e) {
+            Assert.assertEquals("Bad credentials", e.getMessage());
+        }
+        Assert.assertEquals(0, pool.references("user@github.com"));
+        Assert.assertNotNull(pool.acquire("user@github.com", factory));
+    }
+
+}
@@ -1,8 +1,19 @@
 package io.github.gaol.git_rev_missing;
 
+import org.jboss.set.aphrodite.domain.Commit;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class RepoServiceTest {
 
     @Test
@@ -33,6 +44,169 @@ public class RepoServiceTest {
         Assert.assertEquals(expected, RepoService.trimPatchLocation(patch1));
     }
 
+    @Test
+    public void testPatchId() {
+        FilePatch f1 = new FilePatch("src/Main.java", "@@ -10,6 +10,7 @@ public class Main {\n     void run() {\n+        init();\n     }");
+        FilePatch f2 = new FilePatch("README.md", "@@ -1 +1 @@\n-old\n+new");
+        // same changes in another location, with different indentation and file order
+        FilePatch f1Moved = new FilePatch("src/Main.java", "@@ -42,6 +42,7 @@ public class Main {\n  void run() {\n+    init();\n  }");
+        Assert.assertEquals(PatchId.of(Arrays.asList(f1, f2)), PatchId.of(Arrays.asList(f2, f1Moved)));
+
+        FilePatch f1Changed = new FilePatch("src/Main.java", "@@ -10,6 +10,7 @@ public class Main {\n     void run() {\n+        start();\n     }");
+        Assert.assertNotEquals(PatchId.of(Arrays.asList(f1, f2)), PatchId.of(Arrays.asList(f1Changed, f2)));
+        FilePatch f1Renamed = new FilePatch("src/App.java", f1.getPatch());
+        Assert.assertNotEquals(PatchId.of(Arrays.asList(f1, f2)), PatchId.of(Arrays.asList(f1Renamed, f2)));
+        Assert.assertNull(PatchId.of(Collections.emptyList()));
+
+        // the unrelated changes of the same binary file cannot be told apart, so they have no fingerprint
+        FilePatch binary = new FilePatch("img.png", null);
+        Assert.assertFalse(binary.hasPatch());
+        Assert.assertNull(PatchId.of(Collections.singletonList(binary)));
+        Assert.assertNull(PatchId.of(Arrays.asList(f1, binary)));
+    }
+
+    @Test
+    public void testCommitSameByPath() {
+        RepoService repoService = new RepoService() {
+            @Override
+            List<FilePatch> fetchCommitFiles(String repoIdOrName, String sha) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        FilePatch main = new FilePatch("src/Main.java", "@@ -10,6 +10,7 @@ public class Main {\n     void run() {\n+        init();\n     }");
+        FilePatch readme = new FilePatch("README.md", "@@ -1 +1 @@\n-old\n+new");
+        FilePatch mainMoved = new FilePatch("src/Main.java", "@@ -42,6 +42,7 @@ public class Main {\n     void run() {\n+        init();\n     }");
+        FilePatch readmeChanged = new FilePatch("README.md", "@@ -1 +1 @@\n-old\n+new text");
+        FilePatch readmeRenamed = new FilePatch("README.txt", readme.getPatch());
+        // in another order
+        Assert.assertEquals(CompareResult.Result.SAME, repoService.commitSame("repo", "a1",
+                Arrays.asList(main, readme), "b1", Arrays.asList(readme, mainMoved), 0.5d));
+        Assert.assertEquals(CompareResult.Result.SUSPICIOUS, repoService.commitSame("repo", "a2",
+                Arrays.asList(main, readme), "b2", Arrays.asList(readmeChanged, mainMoved), 0.5d));
+        Assert.assertEquals(CompareResult.Result.DIFFERENT, repoService.commitSame("repo", "a3",
+                Arrays.asList(main, readme), "b3", Arrays.asList(readmeChanged, mainMoved), 0.95d));
+        Assert.assertEquals(CompareResult.Result.DIFFERENT, repoService.commitSame("repo", "a4",
+                Arrays.asList(main, readme), "b4", Arrays.asList(mainMoved, readmeRenamed), 0.5d));
+    }
+
+    @Test
+    public void testPageCommitsSince() throws Exception {
+        List<List<Commit>> history = Arrays.asList(
+                Arrays.asList(new Commit("c5", "Fix 5"), new Commit("c4", "Fix 4")),
+                Arrays.asList(new Commit("c3", "Fix 3"), new Commit("c2", "Fix 2")),
+                Collections.singletonList(new Commit("c1", "Fix 1")));
+        AtomicInteger fetched = new AtomicInteger();
+        RepoService repoService = new RepoService() {
+            @Override
+            List<FilePatch> fetchCommitFiles(String repoIdOrName, String sha) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            Iterator<List<Commit>> fetchPagesSince(URL repoURL, String branch, long since) {
+                Iterator<List<Commit>> pages = history.iterator();
+                return pages("listing commits of " + branch, () -> {
+                    if (!pages.hasNext()) {
+                        return null;
+                    }
+                    fetched.incrementAndGet();
+                    return pages.next();
+                });
+            }
+        };
+        repoService.setHistoryCacheTtl(60_000);
+        URL repoURL = new URL("https://github.com/owner/repo");
+
+        // the merge commit is not checked, so it is not looked for
+        FutureTask<CompactHistory> revA = new FutureTask<>(() -> CompactHistory.of(Arrays.asList(new Commit("c5", "Fix 5"),
+                new Commit("c4", "Fix 4"), new Commit("m1", "Merge pull request #1"))));
+        revA.run();
+        CompactHistory listed = new CompactHistory(new CompactHistory.MessagePool());
+        Assert.assertTrue(GitRevMissingImpl.listUntilFound(repoService.pageCommitsSince(repoURL, "revB", 0), revA,
+                message -> !message.startsWith("Merge "), () -> false, listed));
+        Assert.assertEquals(2, listed.size());
+        Assert.assertEquals(1, fetched.get());
+
+        // a commit not in revB, all pages are listed
+        FutureTask<CompactHistory> revA2 = new FutureTask<>(() -> CompactHistory.of(Arrays.asList(new Commit("c6", "Fix 6"),
+                new Commit("c5", "Fix 5"))));
+        revA2.run();
+        listed = new CompactHistory(new CompactHistory.MessagePool());
+        fetched.set(0);
+        Assert.assertFalse(GitRevMissingImpl.listUntilFound(repoService.pageCommitsSince(repoURL, "revB", 0), revA2,
+                message -> true, () -> false, listed));
+        Assert.assertEquals(5, listed.size());
+        Assert.assertEquals(3, fetched.get());
+
+        // they are cached once all pages are listed
+        fetched.set(0);
+        Iterator<List<Commit>> pages = repoService.pageCommitsSince(repoURL, "revB", 0);
+        Assert.assertEquals(5, pages.next().size());
+        Assert.assertFalse(pages.hasNext());
+        Assert.assertEquals(0, fetched.get());
+    }
+
+    @Test
+    public void testDiskCacheClosedByService() throws Exception {
+        File dir = Files.createTempDirectory("g_r_m-cache").toFile();
+        RepoService first = new RepoService() {
+            @Override
+            List<FilePatch> fetchCommitFiles(String repoIdOrName, String sha) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        RepoService second = new RepoService() {
+            @Override
+            List<FilePatch> fetchCommitFiles(String repoIdOrName, String sha) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        first.setDiskCache(DiskCache.open(dir, 1024 * 1024), "github.com");
+        second.setDiskCache(DiskCache.open(dir, 1024 * 1024), "gitlab.com");
+        first.destroy();
+        try {
+            DiskCache.open(dir, 2 * 1024 * 1024);
+            Assert.fail("It is still used by the second service");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("is open with the max size: 1048576 bytes"));
+        }
+        // closed once no service uses it, so it is opened again with another size
+        second.setDiskCache(null, null);
+        DiskCache cache = DiskCache.open(dir, 2 * 1024 * 1024);
+        cache.close();
+    }
+
+    @Test
+    public void testHistoryCacheHitCountedOnce() throws Exception {
+        AtomicInteger fetched = new AtomicInteger();
+        RepoService repoService = new RepoService() {
+            @Override
+            List<FilePatch> fetchCommitFiles(String repoIdOrName, String sha) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            List<Commit> fetchCommitsSince(URL repoURL, String branch, long since) {
+                fetched.incrementAndGet();
+                return Collections.singletonList(new Commit("c1", "Fix 1"));
+            }
+        };
+        repoService.setHistoryCacheTtl(60_000);
+        URL repoURL = new URL("https://github.com/owner/repo");
+        Metrics check = new Metrics();
+        check.bind(() -> {
+            repoService.getCommitsSince(repoURL, "revA", 0);
+            return repoService.getCommitsSince(repoURL, "revA", 0);
+        });
+        Assert.assertEquals(1, fetched.get());
+        CacheStats histories = repoService.getCachesStats().get("histories");
+        Assert.assertEquals(1, histories.getHitCount());
+        Assert.assertEquals(1, histories.getMissCount());
+        histories = check.cacheStats(repoService.getCachesStats()).get("histories");
+        Assert.assertEquals(1, histories.getHitCount());
+        Assert.assertEquals(1, histories.getMissCount());
+    }
+
     @Test
     public void testMessageSimilar() {
         String m1 = "Fix issue with 100-continue and h2";
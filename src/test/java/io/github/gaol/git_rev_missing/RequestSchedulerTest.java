@@ -0,0 +1,65 @@
+package io.github.gaol.git_rev_missing;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RequestSchedulerTest {
+
+    @Test
+    public void testRetryRateLimited() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler("test",
+                failure -> failure.getMessage().contains("rate limit") ? 1L : -1L, s -> {});
+        AtomicInteger calls = new AtomicInteger();
+        String result = scheduler.execute("test", "testing", () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new IOException("API rate limit exceeded");
+            }
+            return "done";
+        });
+        Assert.assertEquals("done", result);
+        Assert.assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testNotRetried() {
+        RequestScheduler scheduler = new RequestScheduler("test",
+                failure -> failure.getMessage().contains("rate limit") ? 1L : -1L, s -> {});
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            scheduler.execute("test", "testing", () -> {
+                calls.incrementAndGet();
+                throw new IOException("Not Found");
+            });
+            Assert.fail("IOException is expected");
+        } catch (IOException e) {
+            Assert.assertEquals("Not Found", e.getMessage());
+        }
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testQuota() {
+        RequestScheduler scheduler = RequestScheduler.unlimited("test");
+        long resetAt = System.currentTimeMillis() + 60_000;
+        scheduler.updateQuota(4000, 5000, resetAt);
+        Assert.assertEquals(0, scheduler.reserve());
+        Assert.assertEquals(0, scheduler.reserve());
+
+        // less than 10 requests per second are left until the reset, the requests are spread
+        scheduler.updateQuota(450, 5000, resetAt);
+        scheduler.reserve();
+        Assert.assertTrue(scheduler.reserve() > 100);
+
+        // only the reserve is left
+        scheduler.updateQuota(50, 5000, resetAt);
+        Assert.assertTrue(scheduler.reserve() > 55_000);
+
+        // the quota is reset
+        scheduler.updateQuota(0, 5000, System.currentTimeMillis() - 1);
+        Assert.assertEquals(0, scheduler.reserve());
+    }
+
+}
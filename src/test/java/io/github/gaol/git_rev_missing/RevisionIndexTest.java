@@ -0,0 +1,161 @@
+package io.github.gaol.git_rev_missing;
+
+import org.jboss.set.aphrodite.domain.Commit;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class RevisionIndexTest {
+
+    private static final List<Commit> COMMITS = Arrays.asList(
+            new Commit("a1", "Fix issue with 100-continue and h2"),
+            new Commit("a2", "[UNDERTOW-1657] Fix issue with 100-continue and h2"),
+            new Commit("a3", "Update 2nd in a separate file"),
+            new Commit("a4", "Fix issue with 100-continue and h2"),
+            new Commit("a5", "[JBEAP-18580][UNDERTOW-1774] Treat whitespace as illegal in header field-name"),
+            new Commit("a6", "Upgrade jackson to 2.10.2"));
+
+    @Test
+    public void testSha() {
+        RevisionIndex index = new RevisionIndex(COMMITS);
+        Assert.assertTrue(index.containsSha("a3"));
+        Assert.assertFalse(index.containsSha("b3"));
+    }
+
+    @Test
+    public void testSameMessage() {
+        RevisionIndex index = new RevisionIndex(COMMITS);
+        Assert.assertEquals(Arrays.asList("a1", "a4"), shas(index.sameMessage("Fix issue with 100-continue and h2")));
+        Assert.assertTrue(index.sameMessage("Not there").isEmpty());
+    }
+
+    @Test
+    public void testSimilarMessage() {
+        RevisionIndex index = new RevisionIndex(COMMITS);
+        for (Commit commit : COMMITS) {
+            Assert.assertEquals(bruteForceSimilar(commit.getMessage(), 0.7d), shas(index.similarMessage(commit.getMessage(), 0.7d)));
+        }
+        String message = "[JBEAP-18580] Treat whitespace as illegal in header field-name";
+        Assert.assertEquals(bruteForceSimilar(message, 0.9d), shas(index.similarMessage(message, 0.9d)));
+        Assert.assertTrue(shas(index.similarMessage(message, 0.9d)).contains("a5"));
+    }
+
+    @Test
+    public void testSimilarMessageRecall() {
+        Random random = new Random(20210410L);
+        String[] words = {"Fix", "Upgrade", "Remove", "Add", "NPE", "in", "the", "handler", "when", "request", "is",
+                "invalid", "header", "field-name", "whitespace", "illegal", "to", "2.10.2", "jackson", "h2", "100-continue"};
+        List<Commit> commits = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            StringBuilder sb = new StringBuilder();
+            if (random.nextBoolean()) {
+                sb.append("[JBEAP-").append(random.nextInt(50)).append("] ");
+            }
+            for (int w = 0, n = 1 + random.nextInt(10); w < n; w++) {
+                sb.append(words[random.nextInt(words.length)]).append(w == n - 1 ? "" : " ");
+            }
+            commits.add(new Commit("c" + i, sb.toString()));
+        }
+        RevisionIndex index = new RevisionIndex(commits);
+        for (double threshold : new double[]{0.5d, 0.7d, 0.85d, 0.95d}) {
+            for (Commit commit : commits.subList(0, 60)) {
+                Assert.assertEquals(bruteForceSimilar(commits, commit.getMessage(), threshold),
+                        shas(index.similarMessage(commit.getMessage(), threshold)));
+            }
+        }
+        List<String> messages = new ArrayList<>();
+        for (Commit commit : commits) {
+            messages.add(commit.getMessage());
+        }
+        Assert.assertTrue(new SimilarMessageIndex(messages).candidates(commits.get(0).getMessage(), 0.9d).length < commits.size());
+    }
+
+    @Test
+    public void testUpperBound() {
+        Random random = new Random(20240612L);
+        String base = "Fix NPE in the handler when the request is invalid";
+        assertUpperBound(base, "Fix ZPE in the handler when the request is invalid");
+        Assert.assertEquals(Collections.singletonList("z1"), shas(new RevisionIndex(Collections.singletonList(
+                new Commit("z1", "Fix ZPE in the handler when the request is invalid"))).similarMessage(base, 0.99d)));
+        for (int i = 0; i < 5000; i++) {
+            // mostly similar pairs, where the prefix boost matters
+            String message = randomMessage(random, 1 + random.nextInt(60));
+            StringBuilder other = new StringBuilder(message);
+            for (int e = 0, n = random.nextInt(5); e < n && other.length() > 0; e++) {
+                int at = random.nextInt(other.length());
+                if (random.nextBoolean()) {
+                    other.setCharAt(at, (char) ('a' + random.nextInt(26)));
+                } else {
+                    other.deleteCharAt(at);
+                }
+            }
+            assertUpperBound(message, random.nextInt(4) == 0 ? randomMessage(random, 1 + random.nextInt(60)) : other.toString());
+        }
+    }
+
+    private static String randomMessage(Random random, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append(random.nextInt(5) == 0 ? ' ' : (char) ('a' + random.nextInt(6)));
+        }
+        return sb.toString();
+    }
+
+    // the bound from the exact common characters, the index uses a coarser histogram, which is never lower
+    private static void assertUpperBound(String message1, String message2) {
+        if (message1.isEmpty() || message2.isEmpty()) {
+            return;
+        }
+        Map<Character, Integer> counts = new HashMap<>();
+        for (char c : message1.toCharArray()) {
+            counts.merge(c, 1, Integer::sum);
+        }
+        int common = 0;
+        for (char c : message2.toCharArray()) {
+            if (counts.getOrDefault(c, 0) > 0) {
+                counts.merge(c, -1, Integer::sum);
+                common++;
+            }
+        }
+        int prefix = 0;
+        while (prefix < Math.min(message1.length(), message2.length()) && message1.charAt(prefix) == message2.charAt(prefix)) {
+            prefix++;
+        }
+        double similarness = RepoService.similarness(message1, message2);
+        double bound = SimilarMessageIndex.upperBound(common, message1.length(), message2.length(), prefix);
+        Assert.assertTrue(message1 + " vs " + message2 + ": " + bound + " < " + similarness, bound >= similarness - 1e-12d);
+    }
+
+    private static List<String> bruteForceSimilar(String message, double messageRatioThreshold) {
+        return bruteForceSimilar(COMMITS, message, messageRatioThreshold);
+    }
+
+    private static List<String> bruteForceSimilar(List<Commit> commits, String message, double messageRatioThreshold) {
+        List<String> result = new ArrayList<>();
+        for (Commit c : commits) {
+            if (!c.getMessage().equals(message)) {
+                if (RepoService.commitMessageTrim(c.getMessage()).equals(RepoService.commitMessageTrim(message))
+                        || RepoService.similarness(c.getMessage(), message) > messageRatioThreshold) {
+                    result.add(c.getSha());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<String> shas(List<Commit> commits) {
+        List<String> result = new ArrayList<>();
+        for (Commit c : commits) {
+            result.add(c.getSha());
+        }
+        return result;
+    }
+
+}
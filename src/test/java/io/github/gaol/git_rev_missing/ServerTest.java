@@ -0,0 +1,140 @@
+package io.github.gaol.git_rev_missing;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ServerTest {
+
+    @Test
+    public void testSameRequestsShareTheCheck() throws Exception {
+        AtomicInteger checks = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MissingCommit result = new MissingCommit();
+        Server server = new Server((repo, revA, revB, month) -> {
+            checks.incrementAndGet();
+            started.countDown();
+            Assert.assertTrue(release.await(10, TimeUnit.SECONDS));
+            return result;
+        }, 12, Collections.singletonList("https://github.com/"));
+        CompletableFuture<MissingCommit> first = CompletableFuture.supplyAsync(() -> server.missingCommits("repo", "a", "b", 12));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        CompletableFuture<MissingCommit> second = CompletableFuture.supplyAsync(() -> server.missingCommits("repo", "a", "b", 12));
+        // the second one waits for the first one
+        Thread.sleep(200);
+        release.countDown();
+        Assert.assertSame(result, first.get(10, TimeUnit.SECONDS));
+        Assert.assertSame(result, second.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, checks.get());
+
+        // checked again after the first check is done
+        server.missingCommits("repo", "a", "b", 12);
+        Assert.assertEquals(2, checks.get());
+    }
+
+    @Test
+    public void testHttp() throws Exception {
+        Server server = new Server((repo, revA, revB, month) -> {
+            if (repo.equals("https://github.com/owner/broken")) {
+                throw new RuntimeException("Not found");
+            }
+            Assert.assertEquals("https://github.com/owner/repo", repo);
+            Assert.assertEquals("7.4.0", revA);
+            Assert.assertEquals("7.4.x", revB);
+            Assert.assertEquals(6, month);
+            return new MissingCommit();
+        }, 12, Collections.singletonList("https://github.com/owner")).start(new InetSocketAddress("localhost", 0), 2);
+        try {
+            String base = "http://localhost:" + server.getPort() + Server.MISSING_COMMITS_PATH;
+            HttpURLConnection connection = get(base + "?repo=https%3A%2F%2Fgithub.com%2Fowner%2Frepo&a=7.4.0&b=7.4.x&month=6");
+            Assert.assertEquals(200, connection.getResponseCode());
+            Assert.assertTrue(read(connection.getInputStream()).contains("\"clean\""));
+
+            String broken = "?repo=https%3A%2F%2Fgithub.com%2Fowner%2Fbroken";
+            connection = get(base + broken + "&a=7.4.0&b=7.4.x");
+            Assert.assertEquals(500, connection.getResponseCode());
+            Assert.assertTrue(read(connection.getErrorStream()).contains("Not found"));
+
+            connection = get(base + broken + "&a=7.4.0");
+            Assert.assertEquals(400, connection.getResponseCode());
+
+            // neither the local clones, nor the repositories not allowed, nor the options of git reach the checker
+            for (String query : new String[]{"?repo=%2Ftmp%2Frepo.git&a=7.4.0&b=7.4.x", "?repo=file%3A%2Ftmp%2Frepo.git&a=7.4.0&b=7.4.x",
+                    "?repo=https%3A%2F%2Fgithub.com%2Fother%2Frepo&a=7.4.0&b=7.4.x", broken + "&a=--output%3D%2Ftmp%2Fx&b=7.4.x",
+                    broken + "&a=7.4.0&b=7.4.0..7.4.x", broken + "&a=7.4.0&b=7.4.x&month=0", broken + "&a=7.4.0&b=7.4.x&month=1000"}) {
+                connection = get(base + query);
+                Assert.assertEquals(query, 400, connection.getResponseCode());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testAllowedRepositories() {
+        List<String> allowed = Arrays.asList("https://github.com/owner", "https://gitlab.example.com/");
+        Assert.assertTrue(Server.isAllowed("https://github.com/owner", allowed));
+        Assert.assertTrue(Server.isAllowed("https://github.com/owner/repo", allowed));
+        Assert.assertTrue(Server.isAllowed("https://gitlab.example.com/group/repo", allowed));
+        Assert.assertFalse(Server.isAllowed("https://github.com/owner-x/repo", allowed));
+        Assert.assertFalse(Server.isAllowed("https://github.com/other/repo", allowed));
+        Assert.assertFalse(Server.isAllowed("https://github.com/owner/../other/repo", allowed));
+        Assert.assertFalse(Server.isAllowed("https://gitlab.example.com.evil.com/group/repo", allowed));
+        Assert.assertFalse(Server.isAllowed("/tmp/repo.git", allowed));
+        Assert.assertFalse(Server.isAllowed("file:/tmp/repo.git", Collections.singletonList("file:/tmp/")));
+
+        Assert.assertTrue(Server.isValidRevision("7.4.x"));
+        Assert.assertTrue(Server.isValidRevision("refs/tags/7.4.0"));
+        Assert.assertFalse(Server.isValidRevision("--exec=touch"));
+        Assert.assertFalse(Server.isValidRevision("7.4.0..7.4.x"));
+        Assert.assertFalse(Server.isValidRevision("7.4.0 7.4.x"));
+        Assert.assertFalse(Server.isValidRevision(""));
+    }
+
+    @Test
+    public void testHttpRejectedBeforeCheck() throws Exception {
+        Server server = new Server((repo, revA, revB, month) -> {
+            throw new IllegalArgumentException("Not able to resolve the repository or its credentials: " + repo);
+        }, 12, Collections.singletonList("https://github.com/")).start(new InetSocketAddress("localhost", 0), 1);
+        try {
+            HttpURLConnection connection = get("http://localhost:" + server.getPort() + Server.MISSING_COMMITS_PATH
+                    + "?repo=https%3A%2F%2Fgithub.com%2Fowner%2Frepo&a=7.4.0&b=7.4.x");
+            Assert.assertEquals(400, connection.getResponseCode());
+            Assert.assertTrue(read(connection.getErrorStream()).contains("Not able to resolve"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static HttpURLConnection get(String url) throws IOException {
+        return (HttpURLConnection) new URL(url).openConnection();
+    }
+
+    private static String read(InputStream input) throws IOException {
+        try (InputStream in = input) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+}
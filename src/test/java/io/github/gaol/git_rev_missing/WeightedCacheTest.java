@@ -0,0 +1,179 @@
+package io.github.gaol.git_rev_missing;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WeightedCacheTest {
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        WeightedCache<String, String> cache = new WeightedCache<>(String::length, 10);
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        Assert.assertEquals("aaaa", cache.getIfPresent("a"));
+        cache.put("c", "cccc");
+        Assert.assertNull(cache.getIfPresent("b"));
+        Assert.assertEquals("aaaa", cache.getIfPresent("a"));
+        Assert.assertEquals("cccc", cache.getIfPresent("c"));
+
+        CacheStats stats = cache.stats();
+        Assert.assertEquals(1, stats.getEvictionCount());
+        Assert.assertEquals(4, stats.getEvictionWeight());
+        Assert.assertEquals(2, stats.getSize());
+        Assert.assertEquals(8, stats.getWeight());
+
+        // heavier than the cache
+        cache.put("d", "ddddddddddd");
+        Assert.assertNull(cache.getIfPresent("d"));
+        Assert.assertEquals(8, cache.stats().getWeight());
+
+        cache.setMaxWeight(4);
+        Assert.assertEquals(1, cache.stats().getSize());
+        Assert.assertEquals("cccc", cache.getIfPresent("c"));
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        WeightedCache<String, String> cache = new WeightedCache<>(String::length, 100);
+        Assert.assertEquals("A", cache.get("a", String::toUpperCase));
+        Assert.assertEquals("A", cache.get("a", k -> {
+            throw new AssertionError("loaded twice");
+        }));
+        CacheStats stats = cache.stats();
+        Assert.assertEquals(1, stats.getHitCount());
+        Assert.assertEquals(1, stats.getMissCount());
+        Assert.assertEquals(0.5d, stats.getHitRate(), 0.0001d);
+    }
+
+    @Test
+    public void testLoadOnce() throws Exception {
+        WeightedCache<String, String> cache = new WeightedCache<>(String::length, 100);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> cache.get("a", k -> {
+                    loads.incrementAndGet();
+                    try {
+                        loading.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return "A";
+                })));
+            }
+            Thread.sleep(100);
+            loading.countDown();
+            for (Future<String> future : futures) {
+                Assert.assertEquals("A", future.get());
+            }
+            Assert.assertEquals(1, loads.get());
+            Assert.assertEquals(1, cache.stats().getMissCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCountedByCheck() {
+        WeightedCache<String, String> cache = new WeightedCache<>("names", String::length, 4);
+        Metrics check1 = new Metrics();
+        Metrics check2 = new Metrics();
+        check1.bind(() -> cache.get("a", String::toUpperCase));
+        check2.bind(() -> cache.get("a", String::toUpperCase) + cache.get("bbbb", String::toUpperCase));
+        Map<String, CacheStats> stats1 = check1.cacheStats(Collections.singletonMap("names", cache.stats()));
+        Map<String, CacheStats> stats2 = check2.cacheStats(Collections.singletonMap("names", cache.stats()));
+        Assert.assertEquals(0, stats1.get("names").getHitCount());
+        Assert.assertEquals(1, stats1.get("names").getMissCount());
+        Assert.assertEquals(0, stats1.get("names").getEvictionCount());
+        Assert.assertEquals(1, stats2.get("names").getHitCount());
+        Assert.assertEquals(1, stats2.get("names").getMissCount());
+        // evicted by the check which puts the heavier one
+        Assert.assertEquals(1, stats2.get("names").getEvictionCount());
+        Assert.assertEquals(1, stats2.get("names").getSize());
+        Assert.assertEquals(1, cache.stats().getHitCount());
+        Assert.assertEquals(2, cache.stats().getMissCount());
+    }
+
+    @Test
+    public void testInterruptedLoadNotShared() throws Exception {
+        WeightedCache<String, String> cache = new WeightedCache<>(String::length, 100);
+        CountDownLatch loading = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // the load of a cancelled check
+            Future<String> cancelled = executor.submit(() -> cache.get("a", k -> {
+                loading.countDown();
+                try {
+                    Thread.sleep(10_000);
+                    return "cancelled";
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted when loading " + k, e);
+                }
+            }));
+            Assert.assertTrue(loading.await(5, TimeUnit.SECONDS));
+            // another check waiting for the same key
+            Future<String> other = executor.submit(() -> cache.get("a", String::toUpperCase));
+            Thread.sleep(100);
+            cancelled.cancel(true);
+            Assert.assertEquals("A", other.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals("A", cache.getIfPresent("a"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedLoadShared() throws Exception {
+        WeightedCache<String, String> cache = new WeightedCache<>(String::length, 100);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch failing = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                futures.add(executor.submit(() -> cache.get("a", k -> {
+                    loads.incrementAndGet();
+                    loading.countDown();
+                    try {
+                        failing.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IllegalStateException("Not found: " + k);
+                })));
+                Assert.assertTrue(loading.await(5, TimeUnit.SECONDS));
+            }
+            Thread.sleep(100);
+            failing.countDown();
+            for (Future<String> future : futures) {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                    Assert.fail("The failure is for both of them");
+                } catch (ExecutionException e) {
+                    Assert.assertEquals("Not found: a", e.getCause().getMessage());
+                }
+            }
+            Assert.assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}